@@ -2,11 +2,42 @@ package com.github.ankurpathak.lld.bookmyshow;
 
 import lombok.ToString;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 @ToString
 class User {
@@ -92,6 +123,7 @@ class Theater {
     }
 
     void addShow(Show show) {
+        show.theater = this;
         shows.put(show.id, show);
     }
 
@@ -106,12 +138,19 @@ class Show {
     private static int idCounter = 0;
     int id;
     Movie movie;
+    Theater theater;
     Screen screen;
     LocalDate date;
     LocalTime time;
     Duration duration;
-    Set<String> seatBookings =  new HashSet<>();
-    Map<SeatType, BigDecimal> seatCost = new HashMap<>();
+    SeatInventory seatBookings;
+    AtomicIntegerArray freeSeats;
+    SeatRunIndex freeRuns;
+    Map<SeatType, BigDecimal> seatCost = new EnumMap<>(SeatType.class);
+    volatile SeatPriceTable basePrices = SeatPriceTable.compile(seatCost);
+    // What bookings are priced against: basePrices with the current surge applied
+    volatile SeatPriceTable prices = basePrices;
+    int[] surgeBasisPoints;
 
 
 
@@ -122,22 +161,90 @@ class Show {
         this.time = time;
         this.duration = duration;
         this.screen = screen;
+        // Seats are laid out on the screen before shows are scheduled on it; the layout is
+        // fixed from here on, since the inventory is sized to it
+        screen.layoutFixed = true;
+        this.seatBookings = new SeatInventory(screen.seatCount);
+        this.freeSeats = new AtomicIntegerArray(screen.seatTypeCounts);
+        this.freeRuns = new SeatRunIndex(screen.seats.values(), seatBookings);
     }
 
-    void addSeatBooking(String seat) {
-        seatBookings.add(seat);
+    boolean isSeatBooked(Seat seat) {
+        return seatBookings.isBooked(seat.index);
     }
 
-    void removeSeatBooking(String seat) {
-        seatBookings.remove(seat);
+    boolean reserveSeats(List<Seat> seats) {
+        if (!seatBookings.tryReserve(indices(seats))) return false;
+        for (Seat seat : seats) {
+            freeSeats.decrementAndGet(seat.type.ordinal());
+        }
+        freeRuns.markDirty(seats);
+        return true;
+    }
+
+    // One bitmap pass for a whole batch of seat lists; see SeatInventory.tryReserveAll
+    boolean[] reserveAll(List<List<Seat>> seatLists) {
+        List<int[]> requests = new ArrayList<>(seatLists.size());
+        for (List<Seat> seats : seatLists) {
+            requests.add(indices(seats));
+        }
+        boolean[] granted = seatBookings.tryReserveAll(requests);
+        for (int i = 0; i < granted.length; i++) {
+            if (!granted[i]) continue;
+            for (Seat seat : seatLists.get(i)) {
+                freeSeats.decrementAndGet(seat.type.ordinal());
+            }
+            freeRuns.markDirty(seatLists.get(i));
+        }
+        return granted;
+    }
+
+    void releaseSeats(List<Seat> seats) {
+        seatBookings.release(indices(seats));
+        for (Seat seat : seats) {
+            freeSeats.incrementAndGet(seat.type.ordinal());
+        }
+        freeRuns.markDirty(seats);
+    }
+
+    List<Seat> bestAvailable(SeatType type, int count) {
+        return freeRuns.findBest(type, count);
     }
 
-    void addSeatCost(SeatType type, BigDecimal cost) {
+    int freeSeats(SeatType type) {
+        return freeSeats.get(type.ordinal());
+    }
+
+    private static int[] indices(List<Seat> seats) {
+        int[] indices = new int[seats.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = seats.get(i).index;
+        }
+        return indices;
+    }
+
+    synchronized void addSeatCost(SeatType type, BigDecimal cost) {
         seatCost.put(type, cost);
+        publishPrices(SeatPriceTable.compile(seatCost), surgeBasisPoints);
     }
 
-    void removeSeatCost(SeatType type) {
+    synchronized void removeSeatCost(SeatType type) {
         seatCost.remove(type);
+        publishPrices(SeatPriceTable.compile(seatCost), surgeBasisPoints);
+    }
+
+    synchronized void applySurge(int[] basisPoints) {
+        if (!Arrays.equals(basisPoints, surgeBasisPoints)) publishPrices(basePrices, basisPoints);
+    }
+
+    private void publishPrices(SeatPriceTable base, int[] basisPoints) {
+        basePrices = base;
+        surgeBasisPoints = basisPoints;
+        prices = basisPoints == null ? base : base.surged(basisPoints);
+    }
+
+    LocalDateTime startsAt() {
+        return LocalDateTime.of(date, time);
     }
 
 
@@ -149,6 +256,9 @@ class Screen{
     int id;
     String name;
     Map<String, Seat> seats = new HashMap<>();
+    int seatCount = 0;
+    int[] seatTypeCounts = new int[SeatType.values().length];
+    volatile boolean layoutFixed = false;
 
     Screen(String name) {
         this.id = ++idCounter;
@@ -158,11 +268,21 @@ class Screen{
 
 
     void addSeat(Seat seat) {
+        checkLayoutOpen();
+        seat.index = seatCount++;
+        seatTypeCounts[seat.type.ordinal()]++;
         seats.put(seat.identifier, seat);
     }
 
     void removeSeat(Seat seat) {
-        seats.remove(seat.identifier);
+        checkLayoutOpen();
+        if (seats.remove(seat.identifier) != null) {
+            seatTypeCounts[seat.type.ordinal()]--;
+        }
+    }
+
+    private void checkLayoutOpen() {
+        if (layoutFixed) throw new IllegalStateException("Screen " + id + " already has shows; its seats cannot change.");
     }
 
 
@@ -174,6 +294,7 @@ class Seat {
     int row;
     int col;
     SeatType type;
+    int index = -1;
 
     public Seat(String identifier, int row, int col, SeatType type) {
         this.identifier = identifier;
@@ -187,9 +308,512 @@ enum SeatType {
     REGULAR, PREMIUM, LUXURY
 }
 
+// One bit per seat of a show, indexed by Seat.index. Multi-seat reservations are
+// all-or-nothing: each touched word is claimed with a CAS and rolled back on conflict.
+// A reservation naming the same seat twice is refused.
+class SeatInventory {
+    private final int capacity;
+    private final AtomicLongArray words;
+
+    SeatInventory(int capacity) {
+        this.capacity = capacity;
+        this.words = new AtomicLongArray((capacity + 63) >>> 6);
+    }
+
+    boolean isBooked(int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    boolean areAvailable(int[] indices) {
+        for (int index : indices) {
+            if (isBooked(index)) return false;
+        }
+        return true;
+    }
+
+    boolean tryReserve(int[] indices) {
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        int[] wordIndices = new int[sorted.length];
+        long[] masks = new long[sorted.length];
+        int count = 0;
+        for (int index : sorted) {
+            int word = index >>> 6;
+            if (count == 0 || wordIndices[count - 1] != word) {
+                wordIndices[count++] = word;
+            }
+            // A seat listed twice would be counted twice by the free-seat counters
+            if ((masks[count - 1] & (1L << index)) != 0) return false;
+            masks[count - 1] |= 1L << index;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!claim(wordIndices[i], masks[i])) {
+                for (int j = 0; j < i; j++) {
+                    clear(wordIndices[j], masks[j]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Claims each request's seats all-or-nothing, deciding requests for the same seats in
+    // order, with one CAS per touched word when nothing races the batch. If a word changed
+    // since it was read, the words claimed so far are rolled back, the requests whose seats
+    // were taken in the meantime are dropped, and the rest are claimed again. Requests must
+    // not list a seat twice.
+    boolean[] tryReserveAll(List<int[]> requests) {
+        boolean[] granted = new boolean[requests.size()];
+        long[] claim = new long[words.length()];
+        for (int r = 0; r < requests.size(); r++) {
+            granted[r] = true;
+            for (int index : requests.get(r)) {
+                if (((claim[index >>> 6] | words.get(index >>> 6)) & (1L << index)) != 0) {
+                    granted[r] = false;
+                    break;
+                }
+            }
+            if (granted[r]) {
+                for (int index : requests.get(r)) {
+                    claim[index >>> 6] |= 1L << index;
+                }
+            }
+        }
+        int word = 0;
+        while (word < claim.length) {
+            if (claim[word] == 0 || claim(word, claim[word])) {
+                word++;
+                continue;
+            }
+            long taken = words.get(word) & claim[word];
+            for (int claimed = 0; claimed < word; claimed++) {
+                if (claim[claimed] != 0) clear(claimed, claim[claimed]);
+            }
+            Arrays.fill(claim, 0);
+            for (int r = 0; r < requests.size(); r++) {
+                if (!granted[r]) continue;
+                for (int index : requests.get(r)) {
+                    if (index >>> 6 == word && (taken & (1L << index)) != 0) {
+                        granted[r] = false;
+                        break;
+                    }
+                }
+                if (granted[r]) {
+                    for (int index : requests.get(r)) {
+                        claim[index >>> 6] |= 1L << index;
+                    }
+                }
+            }
+            word = 0;
+        }
+        return granted;
+    }
+
+    void release(int[] indices) {
+        for (int index : indices) {
+            clear(index >>> 6, 1L << index);
+        }
+    }
+
+    int bookedCount() {
+        int count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+
+    int availableCount() {
+        return capacity - bookedCount();
+    }
+
+    private boolean claim(int word, long mask) {
+        while (true) {
+            long current = words.get(word);
+            if ((current & mask) != 0) return false;
+            if (words.compareAndSet(word, current, current | mask)) return true;
+        }
+    }
+
+    private void clear(int word, long mask) {
+        while (true) {
+            long current = words.get(word);
+            if (words.compareAndSet(word, current, current & ~mask)) return;
+        }
+    }
+}
+
+// Seat costs of a show compiled into minor units per SeatType ordinal, so pricing a seat
+// list is a loop over longs. Rebuilt whenever a cost changes; instances are never mutated.
+final class SeatPriceTable {
+    private static final long MISSING = Long.MIN_VALUE;
+    private final int scale;
+    private final long[] minorUnits;
+    private final int[] scales;
+
+    private SeatPriceTable(int scale, long[] minorUnits, int[] scales) {
+        this.scale = scale;
+        this.minorUnits = minorUnits;
+        this.scales = scales;
+    }
+
+    static SeatPriceTable compile(Map<SeatType, BigDecimal> costs) {
+        int scale = 0;
+        for (BigDecimal cost : costs.values()) {
+            scale = Math.max(scale, cost.scale());
+        }
+        long[] minorUnits = new long[SeatType.values().length];
+        int[] scales = new int[minorUnits.length];
+        Arrays.fill(minorUnits, MISSING);
+        for (Map.Entry<SeatType, BigDecimal> entry : costs.entrySet()) {
+            int ordinal = entry.getKey().ordinal();
+            minorUnits[ordinal] = entry.getValue().movePointRight(scale).longValueExact();
+            scales[ordinal] = entry.getValue().scale();
+        }
+        return new SeatPriceTable(scale, minorUnits, scales);
+    }
+
+    long minorUnits(List<Seat> seats) {
+        long total = 0;
+        for (int i = 0; i < seats.size(); i++) {
+            total = Math.addExact(total, minorUnits(seats.get(i).type));
+        }
+        return total;
+    }
+
+    long minorUnits(SeatType type) {
+        long cost = minorUnits[type.ordinal()];
+        if (cost == MISSING) throw new IllegalStateException("No cost set for seat type " + type + ".");
+        return cost;
+    }
+
+    // Scales each type's price by basisPoints[ordinal] / 10000, rounding half up to the table scale
+    SeatPriceTable surged(int[] basisPoints) {
+        long[] surged = minorUnits.clone();
+        for (int i = 0; i < surged.length; i++) {
+            if (surged[i] != MISSING) surged[i] = Math.floorDiv(Math.multiplyExact(surged[i], basisPoints[i]) + 5_000, 10_000);
+        }
+        int[] surgedScales = new int[scales.length];
+        Arrays.fill(surgedScales, scale);
+        return new SeatPriceTable(scale, surged, surgedScales);
+    }
+
+    // Same value and scale as summing the BigDecimal costs of the seats one by one
+    BigDecimal price(List<Seat> seats) {
+        int resultScale = 0;
+        for (int i = 0; i < seats.size(); i++) {
+            resultScale = Math.max(resultScale, scales[seats.get(i).type.ordinal()]);
+        }
+        return BigDecimal.valueOf(minorUnits(seats), scale).setScale(resultScale);
+    }
+}
+
+// Surge multiplier in basis points (10000 = base price) from how full a seat type is and
+// how close the show is. Occupancy tiers are checked from the highest threshold down.
+class SurgePolicy {
+    private final int[] occupancyPercents;
+    private final int[] occupancyBasisPoints;
+    private final Duration lastMinuteWindow;
+    private final int lastMinuteBasisPoints;
+
+    SurgePolicy(int[] occupancyPercents, int[] occupancyBasisPoints, Duration lastMinuteWindow, int lastMinuteBasisPoints) {
+        if (occupancyPercents.length != occupancyBasisPoints.length) {
+            throw new IllegalArgumentException("Each occupancy threshold needs a multiplier.");
+        }
+        this.occupancyPercents = occupancyPercents;
+        this.occupancyBasisPoints = occupancyBasisPoints;
+        this.lastMinuteWindow = lastMinuteWindow;
+        this.lastMinuteBasisPoints = lastMinuteBasisPoints;
+    }
+
+    static SurgePolicy standard() {
+        return new SurgePolicy(new int[]{50, 70, 90}, new int[]{11_000, 12_500, 15_000}, Duration.ofHours(2), 1_000);
+    }
+
+    int basisPoints(int booked, int total, Duration untilShow) {
+        int basisPoints = 10_000;
+        for (int i = occupancyPercents.length - 1; i >= 0 && total > 0; i--) {
+            if (100L * booked >= (long) occupancyPercents[i] * total) {
+                basisPoints = occupancyBasisPoints[i];
+                break;
+            }
+        }
+        if (!untilShow.isNegative() && untilShow.compareTo(lastMinuteWindow) <= 0) basisPoints += lastMinuteBasisPoints;
+        return basisPoints;
+    }
+}
+
+// Reprices shows from their free-seat counters, which reservations keep current, so a
+// pass costs O(seat types) per show. Each reprice publishes a new immutable SeatPriceTable;
+// readers take Show.prices once and price a whole booking against it without locking.
+class SurgePricingEngine {
+    final SurgePolicy policy;
+    ScheduledExecutorService repricing;
+
+    SurgePricingEngine(SurgePolicy policy) {
+        this.policy = policy;
+    }
+
+    void reprice(Show show, LocalDateTime now) {
+        Duration untilShow = Duration.between(now, show.startsAt());
+        int[] basisPoints = new int[SeatType.values().length];
+        for (SeatType type : SeatType.values()) {
+            int total = show.screen.seatTypeCounts[type.ordinal()];
+            basisPoints[type.ordinal()] = policy.basisPoints(total - show.freeSeats(type), total, untilShow);
+        }
+        show.applySurge(basisPoints);
+    }
+
+    void repriceAll(TheaterManager theaterManager, LocalDateTime now) {
+        for (Theater theater : theaterManager.theaters.values()) {
+            for (Show show : theater.shows.values()) {
+                reprice(show, now);
+            }
+        }
+    }
+
+    public void start(TheaterManager theaterManager, Duration interval) {
+        repricing = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "surge-pricing");
+            thread.setDaemon(true);
+            return thread;
+        });
+        repricing.scheduleAtFixedRate(() -> repriceAll(theaterManager, LocalDateTime.now()), 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (repricing != null) repricing.shutdownNow();
+    }
+}
+
+// Longest free run per node over one row's positions (col - minCol). A position is free
+// only if a seat of the tree's type sits there and is not booked; gaps in a row block runs.
+class FreeRunTree {
+    private final int size;
+    private final int[] prefix;
+    private final int[] suffix;
+    private final int[] longest;
+
+    FreeRunTree(boolean[] free) {
+        this.size = free.length;
+        this.prefix = new int[4 * size];
+        this.suffix = new int[4 * size];
+        this.longest = new int[4 * size];
+        build(1, 0, size - 1, free);
+    }
+
+    int longestRun() {
+        return longest[1];
+    }
+
+    void set(int position, boolean free) {
+        set(1, 0, size - 1, position, free);
+    }
+
+    // Smallest start >= from whose window of n positions is free, or -1.
+    int firstFit(int from, int n) {
+        return firstFit(1, 0, size - 1, from, n, new int[1]);
+    }
+
+    // Largest start <= to whose window of n positions is free, or -1.
+    int lastFit(int to, int n) {
+        int end = Math.min(size - 1, to + n - 1);
+        if (end < 0) return -1;
+        return lastFit(1, 0, size - 1, end, n, new int[1]);
+    }
+
+    private void build(int node, int l, int r, boolean[] free) {
+        if (l == r) {
+            int value = free[l] ? 1 : 0;
+            prefix[node] = suffix[node] = longest[node] = value;
+            return;
+        }
+        int mid = (l + r) >>> 1;
+        build(2 * node, l, mid, free);
+        build(2 * node + 1, mid + 1, r, free);
+        pull(node, l, mid, r);
+    }
+
+    private void set(int node, int l, int r, int position, boolean free) {
+        if (l == r) {
+            int value = free ? 1 : 0;
+            prefix[node] = suffix[node] = longest[node] = value;
+            return;
+        }
+        int mid = (l + r) >>> 1;
+        if (position <= mid) set(2 * node, l, mid, position, free);
+        else set(2 * node + 1, mid + 1, r, position, free);
+        pull(node, l, mid, r);
+    }
+
+    private void pull(int node, int l, int mid, int r) {
+        int left = 2 * node, right = 2 * node + 1;
+        prefix[node] = prefix[left] == mid - l + 1 ? prefix[left] + prefix[right] : prefix[left];
+        suffix[node] = suffix[right] == r - mid ? suffix[right] + suffix[left] : suffix[right];
+        longest[node] = Math.max(Math.max(longest[left], longest[right]), suffix[left] + prefix[right]);
+    }
+
+    // Walks [from, size) left to right; run holds the free positions just before the node.
+    private int firstFit(int node, int l, int r, int from, int n, int[] run) {
+        if (r < from) return -1;
+        if (l >= from) {
+            if (run[0] + prefix[node] >= n) return l - run[0];
+            if (longest[node] < n) {
+                run[0] = suffix[node] == r - l + 1 ? run[0] + suffix[node] : suffix[node];
+                return -1;
+            }
+        }
+        int mid = (l + r) >>> 1;
+        int start = firstFit(2 * node, l, mid, from, n, run);
+        return start >= 0 ? start : firstFit(2 * node + 1, mid + 1, r, from, n, run);
+    }
+
+    // Walks [0, end] right to left; run holds the free positions just after the node.
+    private int lastFit(int node, int l, int r, int end, int n, int[] run) {
+        if (l > end) return -1;
+        if (r <= end) {
+            if (run[0] + suffix[node] >= n) return r + run[0] - n + 1;
+            if (longest[node] < n) {
+                run[0] = prefix[node] == r - l + 1 ? run[0] + prefix[node] : prefix[node];
+                return -1;
+            }
+        }
+        int mid = (l + r) >>> 1;
+        int start = lastFit(2 * node + 1, mid + 1, r, end, n, run);
+        return start >= 0 ? start : lastFit(2 * node, l, mid, end, n, run);
+    }
+}
+
+class SeatRow {
+    final int row;
+    final int minCol;
+    final Seat[] positions;
+    final FreeRunTree[] freeRuns = new FreeRunTree[SeatType.values().length];
+    // Set by booking threads once the bitmap has changed under this row
+    final AtomicBoolean dirty = new AtomicBoolean();
+
+    SeatRow(int row, List<Seat> seats) {
+        this.row = row;
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (Seat seat : seats) {
+            min = Math.min(min, seat.col);
+            max = Math.max(max, seat.col);
+        }
+        this.minCol = min;
+        this.positions = new Seat[max - min + 1];
+        for (Seat seat : seats) {
+            positions[seat.col - min] = seat;
+        }
+        for (SeatType type : SeatType.values()) {
+            boolean[] free = new boolean[positions.length];
+            boolean present = false;
+            for (int i = 0; i < positions.length; i++) {
+                free[i] = positions[i] != null && positions[i].type == type;
+                present |= free[i];
+            }
+            if (present) freeRuns[type.ordinal()] = new FreeRunTree(free);
+        }
+    }
+
+    void rebuild(SeatInventory seatBookings) {
+        for (int i = 0; i < positions.length; i++) {
+            Seat seat = positions[i];
+            if (seat != null) freeRuns[seat.type.ordinal()].set(i, !seatBookings.isBooked(seat.index));
+        }
+    }
+}
+
+// Per-show free runs of each row, so "n adjacent seats of a type, as central as possible"
+// costs O(log cols) per row instead of trying every combination of seats.
+class SeatRunIndex {
+    private final Map<Integer, SeatRow> rows = new TreeMap<>();
+    private final SeatInventory seatBookings;
+    private int minRow = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE;
+    private int minCol = Integer.MAX_VALUE, maxCol = Integer.MIN_VALUE;
+
+    SeatRunIndex(Collection<Seat> seats, SeatInventory seatBookings) {
+        this.seatBookings = seatBookings;
+        Map<Integer, List<Seat>> byRow = new TreeMap<>();
+        for (Seat seat : seats) {
+            byRow.computeIfAbsent(seat.row, row -> new ArrayList<>()).add(seat);
+            minRow = Math.min(minRow, seat.row);
+            maxRow = Math.max(maxRow, seat.row);
+            minCol = Math.min(minCol, seat.col);
+            maxCol = Math.max(maxCol, seat.col);
+        }
+        byRow.forEach((row, rowSeats) -> rows.put(row, new SeatRow(row, rowSeats)));
+    }
+
+    // Called after the bitmap changes; booking threads only flag the rows and never wait on
+    // the trees, which are brought up to date by the next search
+    void markDirty(List<Seat> seats) {
+        for (Seat seat : seats) {
+            rows.get(seat.row).dirty.set(true);
+        }
+    }
+
+    synchronized List<Seat> findBest(SeatType type, int count) {
+        if (count <= 0) throw new IllegalArgumentException("Seat count must be positive.");
+        // The flag is cleared before the row is read back from the bitmap, so a change racing
+        // with the rebuild leaves the row dirty for the next search rather than being lost
+        for (SeatRow row : rows.values()) {
+            if (row.dirty.getAndSet(false)) row.rebuild(seatBookings);
+        }
+        // Distances are kept doubled so centers of even-sized blocks stay integral
+        int centerRow = minRow + maxRow, centerCol = minCol + maxCol;
+        SeatRow bestRow = null;
+        int bestStart = -1;
+        long bestScore = Long.MAX_VALUE;
+        for (SeatRow row : rows.values()) {
+            FreeRunTree tree = row.freeRuns[type.ordinal()];
+            if (tree == null || tree.longestRun() < count) continue;
+            int ideal = Math.floorDiv(centerCol - count + 1, 2) - row.minCol;
+            for (int start : new int[]{tree.lastFit(ideal, count), tree.firstFit(Math.max(ideal, 0), count)}) {
+                if (start < 0) continue;
+                long score = Math.abs(2L * row.row - centerRow) + Math.abs(2L * (row.minCol + start) + count - 1 - centerCol);
+                if (score < bestScore) {
+                    bestScore = score;
+                    bestRow = row;
+                    bestStart = start;
+                }
+            }
+        }
+        if (bestRow == null) return List.of();
+        return List.of(Arrays.copyOfRange(bestRow.positions, bestStart, bestStart + count));
+    }
+}
+
+record ShowKey(City city, int movieId, LocalDate date) {
+}
+
+// Shows grouped by (city, movie, date). Free-seat counts per SeatType are kept on each
+// Show and updated as seats are reserved and released, so a lookup never walks bookings.
+class ShowAvailabilityIndex {
+    Map<ShowKey, List<Show>> shows = new ConcurrentHashMap<>();
+
+    void addShow(City city, Show show) {
+        shows.computeIfAbsent(new ShowKey(city, show.movie.id, show.date), key -> new CopyOnWriteArrayList<>()).add(show);
+    }
+
+    void removeShow(City city, Show show) {
+        List<Show> keyShows = shows.get(new ShowKey(city, show.movie.id, show.date));
+        if (keyShows != null) keyShows.remove(show);
+    }
+
+    List<Show> findShows(City city, Movie movie, LocalDate date, SeatType type, int seats) {
+        List<Show> result = new ArrayList<>();
+        for (Show show : shows.getOrDefault(new ShowKey(city, movie.id, date), List.of())) {
+            if (show.freeSeats(type) >= seats) result.add(show);
+        }
+        return result;
+    }
+}
+
 class TheaterManager {
     Map<Integer, Theater> theaters = new HashMap<>();
     Map<City, List<Theater>> cityTheaters = new HashMap<>();
+    ShowAvailabilityIndex availabilityIndex = new ShowAvailabilityIndex();
+    Map<Integer, City> showCities = new ConcurrentHashMap<>();
     {
         for (City city : City.values()) {
             cityTheaters.put(city, new ArrayList<>());
@@ -199,75 +823,262 @@ class TheaterManager {
     public void addTheater(Theater theater) {
         theaters.put(theater.id, theater);
         cityTheaters.get(theater.city).add(theater);
+        for (Show show : theater.shows.values()) {
+            availabilityIndex.addShow(theater.city, show);
+            showCities.put(show.id, theater.city);
+        }
     }
 
     public void removeTheater(Theater theater) {
         theaters.remove(theater.id);
         cityTheaters.get(theater.city).remove(theater);
+        for (Show show : theater.shows.values()) {
+            availabilityIndex.removeShow(theater.city, show);
+            showCities.remove(show.id);
+        }
+    }
+
+    public void addShow(Theater theater, Show show) {
+        theater.addShow(show);
+        availabilityIndex.addShow(theater.city, show);
+        showCities.put(show.id, theater.city);
+    }
+
+    public void removeShow(Theater theater, Show show) {
+        theater.removeShow(show);
+        availabilityIndex.removeShow(theater.city, show);
+        showCities.remove(show.id);
+    }
+
+    public City cityOf(Show show) {
+        City city = showCities.get(show.id);
+        if (city == null) throw new IllegalArgumentException("Show " + show.id + " is not in any theater.");
+        return city;
+    }
+
+    public List<Show> findShows(City city, Movie movie, LocalDate date, SeatType type, int seats) {
+        return availabilityIndex.findShows(city, movie, date, type, seats);
     }
 }
 
 @ToString
 class Booking {
-    private static int idCounter = 0;
+    private static final AtomicInteger idCounter = new AtomicInteger();
     int id;
     Show show;
     List<Seat> seats = new ArrayList<>();
     User user;
     BookingStatus status = BookingStatus.IN_PROGRESS;
     Payment payment;
+    HoldTimeout holdTimeout;
+    BookingJournal journal;
+    BookingEventLog events;
 
     public Booking(Show show, List<Seat> seats, User user) {
-        this.id = ++idCounter;
+        this(idCounter.incrementAndGet(), show, seats, user);
+    }
+
+    // Used by recovery; keeps ids handed out after a restart from colliding with journaled ones
+    Booking(int id, Show show, List<Seat> seats, User user) {
+        this.id = id;
         this.show = show;
         this.seats = seats;
         this.user = user;
+        idCounter.accumulateAndGet(id, Math::max);
     }
 
     BigDecimal computeAmount() {
-        BigDecimal amount = BigDecimal.ZERO;
-        for (Seat seat : seats) {
-            amount = amount.add(show.seatCost.get(seat.type));
-        }
-        return amount;
+        return show.prices.price(seats);
+    }
+
+    long computeAmountMinorUnits() {
+        return show.prices.minorUnits(seats);
     }
 
     boolean areSeatsAvailable() {
         for (Seat seat : seats) {
-            if (show.seatBookings.contains(seat.identifier)) return false;
+            if (show.isSeatBooked(seat)) return false;
         }
         return true;
     }
 
 
-    void assignPayment(Payment payment){
+    // Only a booking still in progress can be held; any other one is left as it is
+    synchronized boolean hold(SeatHoldWheel holdWheel, Duration ttl) {
+        if (status != BookingStatus.IN_PROGRESS) return false;
+        if (!show.reserveSeats(seats)) {
+            status = BookingStatus.CANCELLED;
+            statusChanged();
+            return false;
+        }
+        status = BookingStatus.ON_HOLD;
+        holdTimeout = holdWheel.schedule(this, ttl, System.currentTimeMillis());
+        statusChanged();
+        return true;
+    }
+
+    synchronized void expireHold() {
+        if (status == BookingStatus.ON_HOLD) {
+            show.releaseSeats(seats);
+            holdTimeout = null;
+            status = BookingStatus.EXPIRED;
+            statusChanged();
+        }
+    }
+
+    // Payments only settle bookings in progress or on hold; an expired, cancelled or already
+    // confirmed booking is not changed
+    synchronized void assignPayment(Payment payment){
+        if (status != BookingStatus.IN_PROGRESS && status != BookingStatus.ON_HOLD) return;
         this.payment = payment;
-        if(payment.status == PaymentStatus.SUCCESS && areSeatsAvailable()){
-            for (Seat seat : seats) {
-                show.addSeatBooking(seat.identifier);
-            }
+        boolean held = status == BookingStatus.ON_HOLD;
+        if (held) {
+            holdTimeout.cancel();
+            holdTimeout = null;
+        }
+        if(payment.status == PaymentStatus.SUCCESS && (held || show.reserveSeats(seats))){
             status = BookingStatus.CONFIRMED;
         } else {
+            if (held) show.releaseSeats(seats);
             status = BookingStatus.CANCELLED;
         }
+        statusChanged();
+    }
+
+    // For bookings whose seats Show.reserveAll already claimed, or refused
+    synchronized void settleClaimed(Payment payment, boolean seatsClaimed) {
+        if (status != BookingStatus.IN_PROGRESS) return;
+        this.payment = payment;
+        status = payment.status == PaymentStatus.SUCCESS && seatsClaimed ? BookingStatus.CONFIRMED : BookingStatus.CANCELLED;
+        statusChanged();
+    }
+
+    synchronized void cancel() {
+        if (status == BookingStatus.ON_HOLD) {
+            holdTimeout.cancel();
+            holdTimeout = null;
+        }
+        if (status == BookingStatus.ON_HOLD || status == BookingStatus.CONFIRMED) {
+            show.releaseSeats(seats);
+            status = BookingStatus.CANCELLED;
+            statusChanged();
+        }
+    }
+
+    // Called with the booking's lock held, so a booking's records and events stay in order
+    void statusChanged() {
+        if (journal != null) journal.bookingStatus(this);
+        if (events != null) events.publish(BookingEventType.of(status), this);
     }
 
 }
 
 enum BookingStatus{
-    IN_PROGRESS, CONFIRMED, CANCELLED
+    IN_PROGRESS, ON_HOLD, CONFIRMED, CANCELLED, EXPIRED
+}
+
+class HoldTimeout {
+    final Booking booking;
+    final long deadlineTick;
+    final SeatHoldWheel wheel;
+    int bucket = -1;
+    HoldTimeout prev;
+    HoldTimeout next;
+
+    HoldTimeout(Booking booking, long deadlineTick, SeatHoldWheel wheel) {
+        this.booking = booking;
+        this.deadlineTick = deadlineTick;
+        this.wheel = wheel;
+    }
+
+    void cancel() {
+        wheel.cancel(this);
+    }
+}
+
+// Hashed timing wheel for seat holds: schedule and cancel are O(1) list operations on a
+// bucket; each tick only visits the bucket for that tick, leaving entries due in later
+// rotations of the wheel in place.
+class SeatHoldWheel {
+    private final long tickMillis;
+    private final long startMillis;
+    private final HoldTimeout[] buckets;
+    private final int mask;
+    private long currentTick = 0;
+
+    SeatHoldWheel(Duration tick, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two.");
+        }
+        this.tickMillis = tick.toMillis();
+        this.startMillis = System.currentTimeMillis();
+        this.buckets = new HoldTimeout[wheelSize];
+        this.mask = wheelSize - 1;
+    }
+
+    synchronized HoldTimeout schedule(Booking booking, Duration ttl, long nowMillis) {
+        long deadlineTick = Math.max((nowMillis - startMillis + ttl.toMillis() + tickMillis - 1) / tickMillis, currentTick + 1);
+        HoldTimeout timeout = new HoldTimeout(booking, deadlineTick, this);
+        int bucket = (int) (deadlineTick & mask);
+        timeout.bucket = bucket;
+        timeout.next = buckets[bucket];
+        if (buckets[bucket] != null) buckets[bucket].prev = timeout;
+        buckets[bucket] = timeout;
+        return timeout;
+    }
+
+    synchronized void cancel(HoldTimeout timeout) {
+        if (timeout.bucket < 0) return;
+        unlink(timeout);
+    }
+
+    void advance(long nowMillis) {
+        List<Booking> expired = new ArrayList<>();
+        synchronized (this) {
+            long targetTick = (nowMillis - startMillis) / tickMillis;
+            while (currentTick < targetTick) {
+                currentTick++;
+                HoldTimeout timeout = buckets[(int) (currentTick & mask)];
+                while (timeout != null) {
+                    HoldTimeout next = timeout.next;
+                    if (timeout.deadlineTick <= currentTick) {
+                        unlink(timeout);
+                        expired.add(timeout.booking);
+                    }
+                    timeout = next;
+                }
+            }
+        }
+        for (Booking booking : expired) {
+            booking.expireHold();
+        }
+    }
+
+    private void unlink(HoldTimeout timeout) {
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
 }
 
 @ToString
 class Payment {
-    private static int idCounter = 0;
+    private static final AtomicInteger idCounter = new AtomicInteger();
     int id;
     BigDecimal amount = BigDecimal.ZERO;
     PaymentStatus status = PaymentStatus.PENDING;
     Payment(BigDecimal amount, PaymentStatus status){
-        id = ++idCounter;
+        this(idCounter.incrementAndGet(), amount, status);
+    }
+
+    Payment(int id, BigDecimal amount, PaymentStatus status){
+        this.id = id;
         this.amount = amount;
         this.status = status;
+        idCounter.accumulateAndGet(id, Math::max);
     }
 
 }
@@ -276,12 +1087,406 @@ enum PaymentStatus {
     PENDING, SUCCESS, FAILED
 }
 
+// Append-only booking log in a memory-mapped file. Each record is
+// [length][type][payload][crc32 of type and payload]; a torn tail fails its checksum and
+// is where replay stops. Records carry absolute state, so replaying one twice is harmless.
+class BookingJournal implements Closeable {
+    static final byte BOOKING_CREATED = 1;
+    static final byte BOOKING_STATUS = 2;
+    static final byte PAYMENT_ASSIGNED = 3;
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    interface RecordVisitor {
+        void visit(byte type, ByteBuffer payload);
+    }
+
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    long generation;
+
+    BookingJournal(Path file, long generation) throws IOException {
+        open(file, generation);
+    }
+
+    private void open(Path file, long generation) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_SIZE));
+        this.generation = generation;
+        int end = scan(null);
+        // Clears a torn record so what is appended over it cannot be mistaken for its tail
+        if (end + 4 <= buffer.limit() && buffer.getInt(end) != 0) {
+            for (int i = end; i < buffer.limit(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        buffer.position(end);
+    }
+
+    synchronized void replay(RecordVisitor visitor) {
+        scan(visitor);
+    }
+
+    private int scan(RecordVisitor visitor) {
+        int position = 0;
+        while (position + 4 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 8L + length > buffer.limit()) break;
+            crc.reset();
+            crc.update(buffer.slice(position + 4, length));
+            if ((int) crc.getValue() != buffer.getInt(position + 4 + length)) break;
+            if (visitor != null) visitor.visit(buffer.get(position + 4), buffer.slice(position + 5, length - 1));
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    // Shows and seats are recorded by what they are rather than by their ids, which are
+    // handed out afresh each time the catalog is built
+    synchronized void bookingCreated(Booking booking) {
+        byte[] show = showKey(booking.show).getBytes(StandardCharsets.UTF_8);
+        byte[][] seats = new byte[booking.seats.size()][];
+        int size = 21 + show.length + 4 * seats.length;
+        for (int i = 0; i < seats.length; i++) {
+            seats[i] = booking.seats.get(i).identifier.getBytes(StandardCharsets.UTF_8);
+            size += seats[i].length;
+        }
+        int start = begin(BOOKING_CREATED, size);
+        buffer.putInt(booking.id);
+        putBytes(show);
+        buffer.putInt(booking.user.id);
+        buffer.put((byte) booking.status.ordinal()).putInt(booking.payment == null ? 0 : booking.payment.id);
+        buffer.putInt(seats.length);
+        for (byte[] seat : seats) {
+            putBytes(seat);
+        }
+        end(start);
+    }
+
+    static String showKey(Show show) {
+        return show.theater.address + "/" + show.screen.name + "/" + LocalDateTime.of(show.date, show.time);
+    }
+
+    private void putBytes(byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    synchronized void bookingStatus(Booking booking) {
+        int start = begin(BOOKING_STATUS, 9);
+        buffer.putInt(booking.id).put((byte) booking.status.ordinal()).putInt(booking.payment == null ? 0 : booking.payment.id);
+        end(start);
+    }
+
+    synchronized void paymentAssigned(Payment payment) {
+        int start = begin(PAYMENT_ASSIGNED, 17);
+        buffer.putInt(payment.id).putLong(payment.amount.unscaledValue().longValueExact()).putInt(payment.amount.scale());
+        buffer.put((byte) payment.status.ordinal());
+        end(start);
+    }
+
+    private int begin(byte type, int payloadSize) {
+        int recordSize = payloadSize + 9;
+        if (buffer.remaining() < recordSize) {
+            int position = buffer.position();
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(2L * buffer.capacity(), position + recordSize));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.position(position);
+        }
+        int start = buffer.position();
+        buffer.putInt(payloadSize + 1).put(type);
+        return start;
+    }
+
+    private void end(int start) {
+        crc.reset();
+        crc.update(buffer.slice(start + 4, buffer.position() - start - 4));
+        buffer.putInt((int) crc.getValue());
+    }
+
+    // Later records go to a fresh file; the caller deletes the old one once a snapshot covers it
+    synchronized void roll(Path file, long generation) throws IOException {
+        close();
+        open(file, generation);
+    }
+
+    synchronized void sync() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.truncate(buffer.position());
+        channel.close();
+    }
+}
+
+// Rebuilds bookings and payments from snapshot and journal records. Seats are reserved
+// only once every record is applied, from each booking's final status.
+class BookingReplay implements BookingJournal.RecordVisitor {
+    private final Map<String, Show> shows = new HashMap<>();
+    private final Map<Integer, User> users;
+    private final Map<Integer, Booking> bookings;
+    private final Map<Integer, Payment> payments;
+    private final Map<Integer, Integer> bookingPayments = new HashMap<>();
+
+    BookingReplay(Collection<Show> shows, Map<Integer, User> users, Map<Integer, Booking> bookings, Map<Integer, Payment> payments) {
+        for (Show show : shows) {
+            this.shows.put(BookingJournal.showKey(show), show);
+        }
+        this.users = users;
+        this.bookings = bookings;
+        this.payments = payments;
+    }
+
+    @Override
+    public void visit(byte type, ByteBuffer payload) {
+        switch (type) {
+            case BookingJournal.BOOKING_CREATED -> {
+                int id = payload.getInt();
+                String showKey = BookingJournal.getString(payload);
+                Show show = shows.get(showKey);
+                if (show == null) throw new IllegalStateException("Booking " + id + " is for show " + showKey + ", which is not registered.");
+                int userId = payload.getInt();
+                User user = users.get(userId);
+                if (user == null) throw new IllegalStateException("Booking " + id + " is for user " + userId + ", who is not registered.");
+                BookingStatus status = BookingStatus.values()[payload.get()];
+                int paymentId = payload.getInt();
+                List<Seat> seats = new ArrayList<>();
+                for (int i = payload.getInt(); i > 0; i--) {
+                    String identifier = BookingJournal.getString(payload);
+                    Seat seat = show.screen.seats.get(identifier);
+                    if (seat == null) throw new IllegalStateException("Booking " + id + " holds seat " + identifier + ", which screen " + show.screen.name + " does not have.");
+                    seats.add(seat);
+                }
+                Booking booking = new Booking(id, show, seats, user);
+                booking.status = status;
+                bookings.put(id, booking);
+                bookingPayments.put(id, paymentId);
+            }
+            case BookingJournal.BOOKING_STATUS -> {
+                Booking booking = bookings.get(payload.getInt());
+                booking.status = BookingStatus.values()[payload.get()];
+                bookingPayments.put(booking.id, payload.getInt());
+            }
+            case BookingJournal.PAYMENT_ASSIGNED -> {
+                int id = payload.getInt();
+                BigDecimal amount = BigDecimal.valueOf(payload.getLong(), payload.getInt());
+                payments.put(id, new Payment(id, amount, PaymentStatus.values()[payload.get()]));
+            }
+            default -> throw new IllegalStateException("Unknown journal record type " + type + ".");
+        }
+    }
+
+    // Hold timers do not survive a restart, so recovered holds are expired
+    List<Booking> finish() {
+        List<Booking> expired = new ArrayList<>();
+        for (Booking booking : bookings.values()) {
+            booking.payment = payments.get(bookingPayments.getOrDefault(booking.id, 0));
+            if (booking.status == BookingStatus.ON_HOLD) {
+                booking.status = BookingStatus.EXPIRED;
+                expired.add(booking);
+            } else if (booking.status == BookingStatus.CONFIRMED && !booking.show.reserveSeats(booking.seats)) {
+                throw new IllegalStateException("Recovered booking " + booking.id + " overlaps another booking.");
+            }
+        }
+        return expired;
+    }
+}
+
+enum BookingEventType {
+    CREATED, HELD, CONFIRMED, CANCELLED, HOLD_EXPIRED;
+
+    static BookingEventType of(BookingStatus status) {
+        return switch (status) {
+            case IN_PROGRESS -> CREATED;
+            case ON_HOLD -> HELD;
+            case CONFIRMED -> CONFIRMED;
+            case CANCELLED -> CANCELLED;
+            case EXPIRED -> HOLD_EXPIRED;
+        };
+    }
+}
+
+record BookingEvent(long offset, BookingEventType type, int bookingId, int showId, int userId, BookingStatus status, Instant at) {
+}
+
+// Booking lifecycle events in a bounded ring, each with a sequential offset. Subscribers
+// keep their own cursor and only receive what they have requested, so a slow consumer
+// never blocks publishers or buffers unboundedly; one that falls a full ring behind is
+// failed and can resubscribe from oldestOffset().
+class BookingEventLog implements Flow.Publisher<BookingEvent> {
+    private final BookingEvent[] ring;
+    private final Executor executor;
+    private final Set<EventSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private long nextOffset = 0;
+
+    BookingEventLog(int capacity, Executor executor) {
+        this.ring = new BookingEvent[capacity];
+        this.executor = executor;
+    }
+
+    void publish(BookingEventType type, Booking booking) {
+        synchronized (this) {
+            ring[(int) (nextOffset % ring.length)] = new BookingEvent(nextOffset, type, booking.id, booking.show.id, booking.user.id, booking.status, Instant.now());
+            nextOffset++;
+        }
+        for (EventSubscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    synchronized long oldestOffset() {
+        return Math.max(0, nextOffset - ring.length);
+    }
+
+    synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    // null once the cursor has caught up with the publishers
+    synchronized BookingEvent eventAt(long offset) {
+        if (offset < oldestOffset()) {
+            throw new IllegalStateException("Offset " + offset + " is not retained; oldest is " + oldestOffset() + ".");
+        }
+        return offset < nextOffset ? ring[(int) (offset % ring.length)] : null;
+    }
+
+    // Live events only
+    @Override
+    public void subscribe(Flow.Subscriber<? super BookingEvent> subscriber) {
+        subscribe(subscriber, nextOffset());
+    }
+
+    public void subscribe(Flow.Subscriber<? super BookingEvent> subscriber, long fromOffset) {
+        // An offset past the head would wait silently for events that may never be published
+        long next = nextOffset();
+        if (fromOffset < 0 || fromOffset > next) {
+            throw new IllegalArgumentException("Offset " + fromOffset + " is outside the log; next offset is " + next + ".");
+        }
+        EventSubscription subscription = new EventSubscription(this, subscriber, fromOffset, executor);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        subscription.signal();
+    }
+
+    void unsubscribe(EventSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+}
+
+// Drains on the executor; the wip counter lets one drain run at a time and makes it loop
+// again when request() or a publish signals while it is running.
+class EventSubscription implements Flow.Subscription, Runnable {
+    private final BookingEventLog log;
+    private final Flow.Subscriber<? super BookingEvent> subscriber;
+    private final Executor executor;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+    private long cursor;
+
+    EventSubscription(BookingEventLog log, Flow.Subscriber<? super BookingEvent> subscriber, long fromOffset, Executor executor) {
+        this.log = log;
+        this.subscriber = subscriber;
+        this.cursor = fromOffset;
+        this.executor = executor;
+    }
+
+    @Override
+    public void request(long n) {
+        // Failed from the drain so onError never overlaps an onNext
+        if (n <= 0) {
+            error = new IllegalArgumentException("Requested " + n + " events; demand must be positive.");
+            signal();
+            return;
+        }
+        demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+        signal();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        log.unsubscribe(this);
+    }
+
+    void signal() {
+        if (wip.getAndIncrement() == 0) executor.execute(this);
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        do {
+            while (!cancelled) {
+                if (error != null) {
+                    cancel();
+                    subscriber.onError(error);
+                    return;
+                }
+                if (demand.get() == 0) break;
+                BookingEvent event;
+                try {
+                    event = log.eventAt(cursor);
+                } catch (IllegalStateException e) {
+                    cancel();
+                    subscriber.onError(e);
+                    return;
+                }
+                if (event == null) break;
+                cursor++;
+                demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : current - 1);
+                subscriber.onNext(event);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
+
+record BookingRequest(Show show, List<Seat> seats, User user, PaymentStatus paymentStatus) {
+}
+
+// booking is null when the request was rejected before a booking was created
+record BookingResult(BookingRequest request, Booking booking, String rejection) {
+    boolean confirmed() {
+        return booking != null && booking.status == BookingStatus.CONFIRMED;
+    }
+}
+
 class BookingManager {
-    Map<Integer, Booking> bookings = new HashMap<>();
-    Map<Integer, Payment> payments = new HashMap<>();
+    private static final System.Logger LOG = System.getLogger(BookingManager.class.getName());
+    Map<Integer, Booking> bookings = new ConcurrentHashMap<>();
+    Map<Integer, Payment> payments = new ConcurrentHashMap<>();
+    SeatHoldWheel holdWheel = new SeatHoldWheel(Duration.ofSeconds(1), 512);
+    ScheduledExecutorService holdExpiry;
+    Path journalDirectory;
+    BookingJournal journal;
+    ScheduledExecutorService snapshots;
+    BookingEventLog events = new BookingEventLog(16_384, ForkJoinPool.commonPool());
 
     public void addBooking(Booking booking) {
         bookings.put(booking.id, booking);
+        synchronized (booking) {
+            booking.events = events;
+            if (journal != null) {
+                booking.journal = journal;
+                journal.bookingCreated(booking);
+            }
+            events.publish(BookingEventType.CREATED, booking);
+            // Held, batched and replayed bookings change status before they are registered
+            if (booking.status != BookingStatus.IN_PROGRESS) events.publish(BookingEventType.of(booking.status), booking);
+        }
     }
 
     public void removeBooking(Booking booking) {
@@ -290,12 +1495,218 @@ class BookingManager {
 
     public void addPayment(Payment payment) {
         payments.put(payment.id, payment);
+        if (journal != null) journal.paymentAssigned(payment);
     }
 
     public void removePayment(Payment payment) {
         payments.remove(payment.id);
     }
 
+    // Validates and books every request, grouped by show so each show's seats are claimed in
+    // one bitmap pass, then registers the batch and forces the journal once for all of it.
+    // Requests for the same seats are decided in submission order within a show.
+    public List<BookingResult> submitBatch(List<BookingRequest> requests) {
+        BookingResult[] results = new BookingResult[requests.size()];
+        Map<Show, List<Integer>> byShow = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            byShow.computeIfAbsent(requests.get(i).show(), show -> new ArrayList<>()).add(i);
+        }
+        List<Booking> created = new ArrayList<>();
+        List<Payment> charged = new ArrayList<>();
+        for (Map.Entry<Show, List<Integer>> entry : byShow.entrySet()) {
+            SeatPriceTable prices = entry.getKey().prices;
+            List<Integer> paid = new ArrayList<>();
+            for (int i : entry.getValue()) {
+                BookingRequest request = requests.get(i);
+                String rejection = validate(request);
+                if (rejection != null) {
+                    results[i] = new BookingResult(request, null, rejection);
+                } else if (request.paymentStatus() == PaymentStatus.SUCCESS) {
+                    paid.add(i);
+                } else {
+                    settle(request, prices, false, results, i, created, charged);
+                }
+            }
+            boolean[] granted = entry.getKey().reserveAll(paid.stream().map(i -> requests.get(i).seats()).toList());
+            for (int k = 0; k < paid.size(); k++) {
+                settle(requests.get(paid.get(k)), prices, granted[k], results, paid.get(k), created, charged);
+            }
+        }
+        for (Booking booking : created) {
+            addBooking(booking);
+        }
+        for (Payment payment : charged) {
+            addPayment(payment);
+        }
+        if (journal != null) journal.sync();
+        return Arrays.asList(results);
+    }
+
+    private static void settle(BookingRequest request, SeatPriceTable prices, boolean seatsClaimed, BookingResult[] results, int i,
+                               List<Booking> created, List<Payment> charged) {
+        Booking booking = new Booking(request.show(), request.seats(), request.user());
+        Payment payment = new Payment(prices.price(request.seats()), request.paymentStatus());
+        booking.settleClaimed(payment, seatsClaimed);
+        created.add(booking);
+        charged.add(payment);
+        results[i] = new BookingResult(request, booking,
+                booking.status == BookingStatus.CONFIRMED ? null : payment.status == PaymentStatus.SUCCESS ? "Seats already booked." : "Payment failed.");
+    }
+
+    private static String validate(BookingRequest request) {
+        if (request.seats().isEmpty()) return "No seats requested.";
+        Set<String> identifiers = new HashSet<>();
+        for (Seat seat : request.seats()) {
+            if (request.show().screen.seats.get(seat.identifier) != seat) return "Seat " + seat.identifier + " is not on the show's screen.";
+            if (!identifiers.add(seat.identifier)) return "Seat " + seat.identifier + " is requested twice.";
+            if (!request.show().seatCost.containsKey(seat.type)) return "No cost set for seat type " + seat.type + ".";
+        }
+        return null;
+    }
+
+    public Booking holdSeats(Show show, List<Seat> seats, User user, Duration ttl) {
+        Booking booking = new Booking(show, seats, user);
+        booking.hold(holdWheel, ttl);
+        addBooking(booking);
+        return booking;
+    }
+
+    // Picks the most central block of adjacent seats and holds it; a block taken by a
+    // concurrent booking between lookup and hold is simply looked up again.
+    public Booking holdBestAvailable(Show show, SeatType type, int count, User user, Duration ttl) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            List<Seat> seats = show.bestAvailable(type, count);
+            if (seats.isEmpty()) return null;
+            Booking booking = new Booking(show, seats, user);
+            if (booking.hold(holdWheel, ttl)) {
+                addBooking(booking);
+                return booking;
+            }
+        }
+        return null;
+    }
+
+    public void startHoldExpiry() {
+        holdExpiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "seat-hold-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        holdExpiry.scheduleAtFixedRate(() -> holdWheel.advance(System.currentTimeMillis()), 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void stopHoldExpiry() {
+        if (holdExpiry != null) holdExpiry.shutdownNow();
+    }
+
+    // Loads the latest snapshot, replays the journals written since, and keeps journaling
+    // into the newest one. Theaters, shows and users must already be registered.
+    public void recover(Path directory, TheaterManager theaterManager, UserManager userManager) throws IOException {
+        Files.createDirectories(directory);
+        List<Show> shows = new ArrayList<>();
+        for (Theater theater : theaterManager.theaters.values()) {
+            shows.addAll(theater.shows.values());
+        }
+        BookingReplay replay = new BookingReplay(shows, userManager.users, bookings, payments);
+        long snapshotGeneration = latestGeneration(directory, "snapshot-");
+        if (snapshotGeneration > 0) {
+            try (BookingJournal snapshot = new BookingJournal(snapshotFile(directory, snapshotGeneration), snapshotGeneration)) {
+                snapshot.replay(replay);
+            }
+        }
+        long generation = Math.max(snapshotGeneration, latestGeneration(directory, "journal-"));
+        generation = Math.max(generation, 1);
+        for (long journalGeneration : generations(directory, "journal-")) {
+            if (journalGeneration < snapshotGeneration) {
+                Files.delete(journalFile(directory, journalGeneration));
+            } else if (journalGeneration < generation) {
+                try (BookingJournal previous = new BookingJournal(journalFile(directory, journalGeneration), journalGeneration)) {
+                    previous.replay(replay);
+                }
+            }
+        }
+        journalDirectory = directory;
+        journal = new BookingJournal(journalFile(directory, generation), generation);
+        journal.replay(replay);
+        List<Booking> expired = replay.finish();
+        for (Booking booking : bookings.values()) {
+            booking.journal = journal;
+            booking.events = events;
+        }
+        for (Booking booking : expired) {
+            synchronized (booking) {
+                booking.statusChanged();
+            }
+        }
+    }
+
+    // Switches to a new journal, then writes the live state as the snapshot for it. Records
+    // racing the switch land in the new journal and are replayed over the snapshot.
+    public synchronized void snapshot() throws IOException {
+        long previous = journal.generation;
+        long generation = previous + 1;
+        journal.roll(journalFile(journalDirectory, generation), generation);
+        Path temporary = journalDirectory.resolve("snapshot.tmp");
+        Files.deleteIfExists(temporary);
+        try (BookingJournal snapshot = new BookingJournal(temporary, generation)) {
+            for (Booking booking : bookings.values()) {
+                synchronized (booking) {
+                    snapshot.bookingCreated(booking);
+                }
+            }
+            for (Payment payment : payments.values()) {
+                snapshot.paymentAssigned(payment);
+            }
+        }
+        Files.move(temporary, snapshotFile(journalDirectory, generation), StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(journalFile(journalDirectory, previous));
+        Files.deleteIfExists(snapshotFile(journalDirectory, previous));
+    }
+
+    public void startSnapshots(Duration interval) {
+        snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "booking-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A failure is logged and retried on the next run; throwing would cancel every later run
+        snapshots.scheduleAtFixedRate(() -> {
+            try {
+                snapshot();
+            } catch (IOException | RuntimeException e) {
+                LOG.log(System.Logger.Level.ERROR, "Booking snapshot failed; retrying in " + interval + ".", e);
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void stopJournal() throws IOException {
+        if (snapshots != null) snapshots.shutdownNow();
+        if (journal != null) journal.close();
+    }
+
+    private static Path journalFile(Path directory, long generation) {
+        return directory.resolve("journal-" + generation + ".log");
+    }
+
+    private static Path snapshotFile(Path directory, long generation) {
+        return directory.resolve("snapshot-" + generation + ".bin");
+    }
+
+    private static List<Long> generations(Path directory, String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix))
+                    .map(name -> Long.parseLong(name.substring(prefix.length(), name.indexOf('.'))))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static long latestGeneration(Path directory, String prefix) throws IOException {
+        List<Long> generations = generations(directory, prefix);
+        return generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+    }
+
 }
 
 
@@ -304,6 +1715,136 @@ enum City{
     DELHI, MUMBAI, BANGALORE, PUNE
 }
 
+// Owns the bookings of one city. Every command and the hold-expiry tick run on the
+// shard's single thread, so the shard's BookingManager is only ever touched by one writer.
+class BookingShard {
+    final City city;
+    final BookingManager bookingManager = new BookingManager();
+    private final ScheduledExecutorService loop;
+
+    BookingShard(City city) {
+        this.city = city;
+        this.loop = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "booking-shard-" + city.name().toLowerCase());
+            thread.setDaemon(true);
+            return thread;
+        });
+        loop.scheduleAtFixedRate(() -> bookingManager.holdWheel.advance(System.currentTimeMillis()), 1, 1, TimeUnit.SECONDS);
+    }
+
+    <T> CompletableFuture<T> submit(Function<BookingManager, T> command) {
+        return CompletableFuture.supplyAsync(() -> command.apply(bookingManager), loop);
+    }
+
+    // Lets commands already submitted finish, then closes the journal they wrote to
+    void stop() throws IOException, InterruptedException {
+        loop.shutdown();
+        loop.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        bookingManager.stopJournal();
+    }
+}
+
+// Catalog (movies, theaters, users) is shared and read-mostly; bookings are partitioned by
+// the city of the show and routed to that city's shard, so cities never contend.
+class ShardedBookMyShow {
+    MovieManager movieManager = new MovieManager();
+    TheaterManager theaterManager = new TheaterManager();
+    UserManager userManager = new UserManager();
+    Map<City, BookingShard> shards = new EnumMap<>(City.class);
+
+    public ShardedBookMyShow() {
+        for (City city : City.values()) {
+            shards.put(city, new BookingShard(city));
+        }
+    }
+
+    BookingShard shardOf(Show show) {
+        return shards.get(theaterManager.cityOf(show));
+    }
+
+    // A show outside every theater fails the returned future instead of throwing at the caller
+    private <T> CompletableFuture<T> onShard(Show show, Function<BookingManager, T> command) {
+        try {
+            return shardOf(show).submit(command);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<Booking> book(Show show, List<Seat> seats, User user, PaymentStatus paymentStatus) {
+        return onShard(show, bookingManager -> {
+            Booking booking = new Booking(show, seats, user);
+            Payment payment = new Payment(booking.computeAmount(), paymentStatus);
+            booking.assignPayment(payment);
+            bookingManager.addBooking(booking);
+            bookingManager.addPayment(payment);
+            return booking;
+        });
+    }
+
+    // Splits the batch by city, runs each part as one batch on its shard, and stitches the
+    // results back into request order.
+    public CompletableFuture<List<BookingResult>> submitBatch(List<BookingRequest> requests) {
+        Map<BookingShard, List<Integer>> byShard = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                byShard.computeIfAbsent(shardOf(requests.get(i).show()), shard -> new ArrayList<>()).add(i);
+            }
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        BookingResult[] results = new BookingResult[requests.size()];
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<BookingShard, List<Integer>> entry : byShard.entrySet()) {
+            List<Integer> indices = entry.getValue();
+            List<BookingRequest> part = indices.stream().map(requests::get).toList();
+            parts.add(entry.getKey().submit(bookingManager -> bookingManager.submitBatch(part)).thenAccept(partResults -> {
+                for (int i = 0; i < indices.size(); i++) {
+                    results[indices.get(i)] = partResults.get(i);
+                }
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).thenApply(done -> Arrays.asList(results));
+    }
+
+    public CompletableFuture<Booking> holdSeats(Show show, List<Seat> seats, User user, Duration ttl) {
+        return onShard(show, bookingManager -> bookingManager.holdSeats(show, seats, user, ttl));
+    }
+
+    public CompletableFuture<Booking> cancel(Booking booking) {
+        return onShard(booking.show, bookingManager -> {
+            booking.cancel();
+            return booking;
+        });
+    }
+
+    // Each shard journals into its own subdirectory and replays only its own city's bookings
+    public void recover(Path directory) throws IOException {
+        for (BookingShard shard : shards.values()) {
+            Path shardDirectory = directory.resolve(shard.city.name().toLowerCase());
+            try {
+                shard.submit(bookingManager -> {
+                    try {
+                        bookingManager.recover(shardDirectory, theaterManager, userManager);
+                        return null;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException io) throw io.getCause();
+                throw e;
+            }
+        }
+    }
+
+    public void stop() throws IOException, InterruptedException {
+        for (BookingShard shard : shards.values()) {
+            shard.stop();
+        }
+    }
+}
+
 class BookMyShow {
     MovieManager movieManager;
     TheaterManager theaterManager;
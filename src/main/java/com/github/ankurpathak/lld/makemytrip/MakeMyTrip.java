@@ -2,10 +2,50 @@ package com.github.ankurpathak.lld.makemytrip;
 
 import lombok.AllArgsConstructor;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 class Airline {
     private static int idCounter = 0;
@@ -42,6 +82,7 @@ class Aircraft {
     String model;
     String manufacturer;
     List<Seat> seats = new ArrayList<>();
+    private SeatMap seatMap;
     Aircraft(String tailNumber, String model, String manufacturer) {
         this.id = ++idCounter;
         this.tailNumber = tailNumber;
@@ -51,10 +92,236 @@ class Aircraft {
 
     public void addSeat(Seat seat) {
         seats.add(seat);
+        seatMap = null;
     }
 
     public void removeSeat(Seat seat) {
         seats.remove(seat);
+        seatMap = null;
+    }
+
+    // Schedules take the seat map current when they are created
+    synchronized SeatMap seatMap() {
+        if (seatMap == null) seatMap = new SeatMap(seats);
+        return seatMap;
+    }
+}
+
+// Immutable layout shared by every schedule flown with an aircraft: seats by index, a
+// bitmask of the seats of each SeatType, the number of seats in each (SeatType, feature
+// combination) group, and the seat to the right of each seat (same row and type, next
+// column) or -1.
+class SeatMap {
+    static final int FEATURE_COMBINATIONS = 1 << SeatFeature.values().length;
+    final Seat[] seats;
+    final Map<String, Integer> indexByIdentifier = new HashMap<>();
+    final int words;
+    final long[][] typeMasks;
+    final int[][] groupSizes;
+    final int[] rightNeighbour;
+
+    SeatMap(List<Seat> seats) {
+        this.seats = seats.toArray(Seat[]::new);
+        this.words = (this.seats.length + 63) >>> 6;
+        this.typeMasks = new long[SeatType.values().length][words];
+        this.groupSizes = new int[SeatType.values().length][FEATURE_COMBINATIONS];
+        this.rightNeighbour = new int[this.seats.length];
+        Map<Long, Integer> byPosition = new HashMap<>();
+        for (int i = 0; i < this.seats.length; i++) {
+            Seat seat = this.seats[i];
+            indexByIdentifier.put(seat.identifier, i);
+            int features = featureMask(seat.features);
+            typeMasks[seat.type.ordinal()][i >>> 6] |= 1L << i;
+            groupSizes[seat.type.ordinal()][features]++;
+            byPosition.put(((long) seat.row << 32) | seat.col, i);
+        }
+        for (int i = 0; i < this.seats.length; i++) {
+            Integer right = byPosition.get(((long) this.seats[i].row << 32) | (this.seats[i].col + 1));
+            rightNeighbour[i] = right != null && this.seats[right].type == this.seats[i].type ? right : -1;
+        }
+    }
+
+    static int featureMask(Set<SeatFeature> features) {
+        int mask = 0;
+        for (SeatFeature feature : features) {
+            mask |= 1 << feature.ordinal();
+        }
+        return mask;
+    }
+
+    static int group(SeatType type, int featureMask) {
+        return type.ordinal() * FEATURE_COMBINATIONS + featureMask;
+    }
+
+    int indexOf(Seat seat) {
+        Integer index = indexByIdentifier.get(seat.identifier);
+        if (index == null || seats[index] != seat) throw new IllegalArgumentException("Seat " + seat.identifier + " is not on this aircraft.");
+        return index;
+    }
+}
+
+// Booked seats of one schedule as a bitset over its SeatMap. Free seats of a type are found
+// by masking words, without touching Seats.
+// Words are claimed with CAS, so concurrent bookings of one schedule never share a seat and
+// only contend when they touch the same 64 seats.
+class SeatInventory {
+    private static final int MAX_ATTEMPTS = 8;
+    final SeatMap seatMap;
+    private final AtomicLongArray booked;
+    private final AtomicIntegerArray free;
+
+    SeatInventory(SeatMap seatMap) {
+        this.seatMap = seatMap;
+        this.booked = new AtomicLongArray(seatMap.words);
+        this.free = new AtomicIntegerArray(seatMap.groupSizes.length * SeatMap.FEATURE_COMBINATIONS);
+        for (int type = 0; type < seatMap.groupSizes.length; type++) {
+            for (int features = 0; features < SeatMap.FEATURE_COMBINATIONS; features++) {
+                free.set(type * SeatMap.FEATURE_COMBINATIONS + features, seatMap.groupSizes[type][features]);
+            }
+        }
+    }
+
+    boolean isBooked(Seat seat) {
+        return isBooked(seatMap.indexOf(seat));
+    }
+
+    private boolean isBooked(int index) {
+        return (booked.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    boolean book(Seat seat) {
+        return tryReserve(new int[]{seatMap.indexOf(seat)});
+    }
+
+    void release(Seat seat) {
+        release(new int[]{seatMap.indexOf(seat)});
+    }
+
+    // Claims every seat or none: each touched word is CAS-claimed in index order and the
+    // words already claimed are rolled back on the first conflict.
+    boolean tryReserve(int[] indices) {
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        int[] wordIndices = new int[sorted.length];
+        long[] masks = new long[sorted.length];
+        int count = 0;
+        for (int index : sorted) {
+            int word = index >>> 6;
+            if (count == 0 || wordIndices[count - 1] != word) {
+                wordIndices[count++] = word;
+            }
+            if ((masks[count - 1] & (1L << index)) != 0) return false;
+            masks[count - 1] |= 1L << index;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!claim(wordIndices[i], masks[i])) {
+                for (int j = 0; j < i; j++) {
+                    clear(wordIndices[j], masks[j]);
+                }
+                return false;
+            }
+        }
+        for (int index : sorted) {
+            free.decrementAndGet(groupOf(index));
+        }
+        return true;
+    }
+
+    void release(int[] indices) {
+        for (int index : indices) {
+            if (clear(index >>> 6, 1L << index)) free.incrementAndGet(groupOf(index));
+        }
+    }
+
+    // Seats for `count` more flyers of the type plus the preselected ones, reserved together;
+    // returns only the newly chosen seats, or null if they cannot all be had. Prefers a block
+    // of adjacent seats in one row, else the first free seats.
+    List<Seat> allocate(SeatType type, List<Seat> preselected, int count) {
+        int[] chosen = new int[preselected.size() + count];
+        for (int i = 0; i < preselected.size(); i++) {
+            chosen[count + i] = seatMap.indexOf(preselected.get(i));
+        }
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (!choose(type, count, chosen)) return null;
+            if (tryReserve(chosen)) {
+                List<Seat> seats = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    seats.add(seatMap.seats[chosen[i]]);
+                }
+                return seats;
+            }
+        }
+        return null;
+    }
+
+    // Fills chosen[0, count) from a snapshot of the bitmap, skipping the preselected seats
+    // stored after them. The snapshot may be stale; tryReserve has the final word.
+    private boolean choose(SeatType type, int count, int[] chosen) {
+        if (count == 0) return true;
+        long[] typeMask = seatMap.typeMasks[type.ordinal()];
+        int found = 0;
+        for (int word = 0; word < typeMask.length; word++) {
+            long available = typeMask[word] & ~booked.get(word);
+            while (available != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(available);
+                available &= available - 1;
+                if (isPreselected(index, count, chosen)) continue;
+                int run = 1;
+                for (int next = seatMap.rightNeighbour[index]; run < count && next >= 0 && !isBooked(next)
+                        && !isPreselected(next, count, chosen); next = seatMap.rightNeighbour[next]) {
+                    run++;
+                }
+                if (run == count) {
+                    for (int i = 0, seat = index; i < count; i++, seat = seatMap.rightNeighbour[seat]) {
+                        chosen[i] = seat;
+                    }
+                    return true;
+                }
+                if (found < count) chosen[found++] = index;
+            }
+        }
+        return found == count;
+    }
+
+    private static boolean isPreselected(int index, int count, int[] chosen) {
+        for (int i = count; i < chosen.length; i++) {
+            if (chosen[i] == index) return true;
+        }
+        return false;
+    }
+
+    private int groupOf(int index) {
+        Seat seat = seatMap.seats[index];
+        return SeatMap.group(seat.type, SeatMap.featureMask(seat.features));
+    }
+
+    private boolean claim(int word, long mask) {
+        while (true) {
+            long current = booked.get(word);
+            if ((current & mask) != 0) return false;
+            if (booked.compareAndSet(word, current, current | mask)) return true;
+        }
+    }
+
+    // True if the bit was set and this call cleared it
+    private boolean clear(int word, long mask) {
+        while (true) {
+            long current = booked.get(word);
+            if ((current & mask) == 0) return false;
+            if (booked.compareAndSet(word, current, current & ~mask)) return true;
+        }
+    }
+
+    int availableCount(SeatType type) {
+        return availableCount(type, 0);
+    }
+
+    int availableCount(SeatType type, int requiredFeatures) {
+        int count = 0;
+        for (int features = 0; features < SeatMap.FEATURE_COMBINATIONS; features++) {
+            if ((features & requiredFeatures) == requiredFeatures) count += free.get(SeatMap.group(type, features));
+        }
+        return count;
     }
 }
 
@@ -106,6 +373,7 @@ class Flight {
     Duration duration;
     int distance;
     Map<Integer, Schedule> schedules = new HashMap<>();
+    FareCalendar fareCalendar;
 
     public Flight(Airline airline, Aircraft aircraft, String flightNumber, Airport source, Airport destination, Duration duration, int distance) {
         id = ++idCounter;
@@ -130,17 +398,659 @@ class Flight {
 class Schedule {
     private static int idCounter = 0;
     int id;
+    Flight flight;
     LocalDateTime departure;
     LocalDateTime arrival;
-    Set<String> seatBookings = new HashSet<>();
+    SeatInventory seatBookings;
     Map<SeatType, BigDecimal> seatPrices = new HashMap<>();
     Map<SeatFeature, BigDecimal> featurePrices = new HashMap<>();
+    // Set when the schedule was built from a store's row; price changes are written back
+    ColumnarScheduleStore store;
+    private volatile FareTable fares;
 
     public Schedule(Flight flight, LocalDateTime departure, LocalDateTime arrival, Set<String> seatBookings) {
-        id = ++idCounter;
+        this(nextId(), flight, departure, arrival, seatBookings);
+    }
+
+    Schedule(int id, Flight flight, LocalDateTime departure, LocalDateTime arrival, Set<String> seatBookings) {
+        this.id = id;
+        this.flight = flight;
         this.departure = departure;
         this.arrival = arrival;
-        this.seatBookings = seatBookings;
+        this.seatBookings = new SeatInventory(flight.aircraft.seatMap());
+        for (String identifier : seatBookings) {
+            Integer index = this.seatBookings.seatMap.indexByIdentifier.get(identifier);
+            if (index != null) this.seatBookings.book(this.seatBookings.seatMap.seats[index]);
+        }
+    }
+
+    static synchronized int nextId() {
+        return ++idCounter;
+    }
+
+    // Keeps ids of schedules reloaded from a store from being handed out again
+    static synchronized void reserveIds(int upTo) {
+        idCounter = Math.max(idCounter, upTo);
+    }
+
+    synchronized void setSeatPrice(SeatType type, BigDecimal price) {
+        seatPrices.put(type, price);
+        invalidateFares();
+    }
+
+    synchronized void removeSeatPrice(SeatType type) {
+        seatPrices.remove(type);
+        invalidateFares();
+    }
+
+    synchronized void setFeaturePrice(SeatFeature feature, BigDecimal price) {
+        featurePrices.put(feature, price);
+        invalidateFares();
+    }
+
+    synchronized void removeFeaturePrice(SeatFeature feature) {
+        featurePrices.remove(feature);
+        invalidateFares();
+    }
+
+    // For callers that edit seatPrices or featurePrices directly
+    synchronized void invalidateFares() {
+        fares = null;
+        if (store != null) store.writePrices(this);
+        if (flight.fareCalendar != null) flight.fareCalendar.scheduleChanged(this);
+    }
+
+    FareTable fares() {
+        FareTable table = fares;
+        if (table == null) {
+            synchronized (this) {
+                table = fares;
+                if (table == null) {
+                    table = FareTable.compile(seatPrices, featurePrices);
+                    fares = table;
+                }
+            }
+        }
+        return table;
+    }
+}
+
+// A schedule's fares compiled into minor units per SeatType ordinal and feature bitmask:
+// seat price plus every feature in the mask. Quoting a booking is one read per flyer.
+final class FareTable {
+    private static final SeatFeature[] FEATURES = SeatFeature.values();
+    private final int scale;
+    private final long[][] minorUnits;
+    private final int[][] scales;
+
+    private FareTable(int scale, long[][] minorUnits, int[][] scales) {
+        this.scale = scale;
+        this.minorUnits = minorUnits;
+        this.scales = scales;
+    }
+
+    static FareTable compile(Map<SeatType, BigDecimal> seatPrices, Map<SeatFeature, BigDecimal> featurePrices) {
+        int scale = 0;
+        for (BigDecimal price : seatPrices.values()) scale = Math.max(scale, price.scale());
+        for (BigDecimal price : featurePrices.values()) scale = Math.max(scale, price.scale());
+        long[][] minorUnits = new long[SeatType.values().length][SeatMap.FEATURE_COMBINATIONS];
+        int[][] scales = new int[SeatType.values().length][SeatMap.FEATURE_COMBINATIONS];
+        for (SeatType type : SeatType.values()) {
+            for (int mask = 0; mask < SeatMap.FEATURE_COMBINATIONS; mask++) {
+                BigDecimal seatPrice = seatPrices.getOrDefault(type, BigDecimal.ZERO);
+                long total = seatPrice.movePointRight(scale).longValueExact();
+                int totalScale = seatPrice.scale();
+                for (SeatFeature feature : FEATURES) {
+                    if ((mask & (1 << feature.ordinal())) == 0) continue;
+                    BigDecimal featurePrice = featurePrices.getOrDefault(feature, BigDecimal.ZERO);
+                    total = Math.addExact(total, featurePrice.movePointRight(scale).longValueExact());
+                    totalScale = Math.max(totalScale, featurePrice.scale());
+                }
+                minorUnits[type.ordinal()][mask] = total;
+                scales[type.ordinal()][mask] = totalScale;
+            }
+        }
+        return new FareTable(scale, minorUnits, scales);
+    }
+
+    // Same value and scale as adding up the seat and feature prices flyer by flyer. Unseated
+    // flyers are quoted at the booking's class without features.
+    BigDecimal quote(List<Flyer> flyers, SeatType flyingClass) {
+        long total = 0;
+        int resultScale = 0;
+        for (int i = 0; i < flyers.size(); i++) {
+            Seat seat = flyers.get(i).seat;
+            int type = seat != null ? seat.type.ordinal() : flyingClass.ordinal();
+            int mask = seat != null ? featureMask(seat) : 0;
+            total = Math.addExact(total, minorUnits[type][mask]);
+            resultScale = Math.max(resultScale, scales[type][mask]);
+        }
+        return BigDecimal.valueOf(total, scale).setScale(resultScale);
+    }
+
+    // One flyer of the class with no seat picked yet
+    BigDecimal fare(SeatType type) {
+        return BigDecimal.valueOf(minorUnits[type.ordinal()][0], scale).setScale(scales[type.ordinal()][0]);
+    }
+
+    private static int featureMask(Seat seat) {
+        int mask = 0;
+        for (SeatFeature feature : FEATURES) {
+            if (seat.features.contains(feature)) mask |= 1 << feature.ordinal();
+        }
+        return mask;
+    }
+}
+
+// Refers to its schedule by id so the index does not pin schedules served from a store
+enum ScheduleStorage {
+    HEAP, DIRECT, MAPPED
+}
+
+// Schedules as columns of primitives - a minor-unit price per SeatType and SeatFeature, id,
+// departure and arrival in epoch minutes, and the flight number - about 68 bytes a schedule.
+// Columns live in one buffer on the heap, off-heap, or in a memory-mapped file that keeps
+// its rows when reopened; the header holds the row count and the capacity the file was laid
+// out for. Rows name their flight by number, since flight ids are handed out afresh each
+// run, and are matched to the registered flights when the file is opened. Schedule objects are built on lookup and cached weakly, so the same instance comes
+// back while anything (a booking, say) still holds it, and their price changes are written
+// back to the row.
+class ColumnarScheduleStore implements Closeable {
+    private static final long NO_PRICE = Long.MIN_VALUE;
+    private static final int HEADER = 8;
+    private static final int PRICE_COLUMNS = SeatType.values().length + SeatFeature.values().length;
+    private static final int FLIGHT_NUMBER_BYTES = 16;
+    static final int ROW_BYTES = 3 * Integer.BYTES + FLIGHT_NUMBER_BYTES + PRICE_COLUMNS * Long.BYTES;
+
+    private final int capacity;
+    private final int priceScale;
+    private final ByteBuffer buffer;
+    private final FileChannel channel;
+    private final IntBuffer ids;
+    private final IntBuffer departures;
+    private final IntBuffer arrivals;
+    private final ByteBuffer flightNumbers;
+    private final LongBuffer[] prices = new LongBuffer[PRICE_COLUMNS];
+    // Ids of the flights the rows were matched to in this run; not stored
+    private final int[] flightIds;
+    private final Map<Integer, RowList> rowsByFlight = new HashMap<>();
+    private final Map<Integer, CachedSchedule> materialized = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Schedule> collected = new ReferenceQueue<>();
+    private int size;
+
+    private static final class CachedSchedule extends WeakReference<Schedule> {
+        final int id;
+
+        CachedSchedule(Schedule schedule, ReferenceQueue<Schedule> queue) {
+            super(schedule, queue);
+            this.id = schedule.id;
+        }
+    }
+
+    static final class RowList {
+        int[] rows = new int[4];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length) rows = Arrays.copyOf(rows, size * 2);
+            rows[size++] = row;
+        }
+    }
+
+    // Price columns come first so they stay 8-byte aligned whatever the capacity
+    private ColumnarScheduleStore(ByteBuffer buffer, FileChannel channel, int capacity, int priceScale, Collection<Flight> flights) {
+        this.buffer = buffer;
+        this.channel = channel;
+        this.capacity = capacity;
+        this.priceScale = priceScale;
+        int offset = HEADER;
+        for (int i = 0; i < PRICE_COLUMNS; i++, offset += capacity * Long.BYTES) {
+            prices[i] = column(offset, Long.BYTES).asLongBuffer();
+        }
+        ids = column(offset, Integer.BYTES).asIntBuffer();
+        departures = column(offset += capacity * Integer.BYTES, Integer.BYTES).asIntBuffer();
+        arrivals = column(offset += capacity * Integer.BYTES, Integer.BYTES).asIntBuffer();
+        flightNumbers = column(offset + capacity * Integer.BYTES, FLIGHT_NUMBER_BYTES);
+        flightIds = new int[capacity];
+        size = buffer.getInt(0);
+        buffer.putInt(Integer.BYTES, capacity);
+        Map<String, Flight> byNumber = new HashMap<>();
+        for (Flight flight : flights) {
+            if (byNumber.put(flight.flightNumber, flight) != null) {
+                throw new IllegalArgumentException("Flight number " + flight.flightNumber + " is registered more than once.");
+            }
+        }
+        for (int row = 0; row < size; row++) {
+            Flight flight = byNumber.get(flightNumberAt(row));
+            if (flight == null) {
+                throw new IllegalStateException("Schedule " + ids.get(row) + " is for flight " + flightNumberAt(row) + ", which is not registered.");
+            }
+            flightIds[row] = flight.id;
+            rowsByFlight.computeIfAbsent(flight.id, id -> new RowList()).add(row);
+        }
+        if (size > 0) Schedule.reserveIds(ids.get(size - 1));
+    }
+
+    private ByteBuffer column(int offset, int width) {
+        return buffer.slice(offset, capacity * width);
+    }
+
+    static ColumnarScheduleStore create(ScheduleStorage storage, int capacity, int priceScale) {
+        long bytes = HEADER + (long) capacity * ROW_BYTES;
+        if (storage == ScheduleStorage.MAPPED) throw new IllegalArgumentException("Mapped stores need a file; use mapped().");
+        ByteBuffer buffer = storage == ScheduleStorage.DIRECT ? ByteBuffer.allocateDirect(Math.toIntExact(bytes)) : ByteBuffer.allocate(Math.toIntExact(bytes));
+        return new ColumnarScheduleStore(buffer, null, capacity, priceScale, List.of());
+    }
+
+    // Column offsets depend on the capacity, so a file only reopens with the one it was created
+    // with. Every flight the file has rows for must be among flights.
+    static ColumnarScheduleStore mapped(Path file, int capacity, int priceScale, Collection<Flight> flights) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() >= HEADER) {
+                int stored = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).getInt(Integer.BYTES);
+                if (stored != 0 && stored != capacity) {
+                    throw new IllegalArgumentException("Schedule store " + file + " was created with capacity " + stored + ", not " + capacity + ".");
+                }
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * ROW_BYTES);
+            return new ColumnarScheduleStore(buffer, channel, capacity, priceScale, flights);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Ids are allocated in increasing order, so the id column stays sorted for lookups
+    synchronized int add(Flight flight, LocalDateTime departure, LocalDateTime arrival, Map<SeatType, BigDecimal> seatPrices,
+                         Map<SeatFeature, BigDecimal> featurePrices) {
+        if (size == capacity) throw new IllegalStateException("Schedule store is full at " + capacity + " schedules.");
+        byte[] flightNumber = flight.flightNumber.getBytes(StandardCharsets.UTF_8);
+        if (flightNumber.length > FLIGHT_NUMBER_BYTES) {
+            throw new IllegalArgumentException("Flight number " + flight.flightNumber + " is longer than " + FLIGHT_NUMBER_BYTES + " bytes.");
+        }
+        int row = size;
+        int id = Schedule.nextId();
+        ids.put(row, id);
+        flightNumbers.put(row * FLIGHT_NUMBER_BYTES, flightNumber);
+        for (int i = flightNumber.length; i < FLIGHT_NUMBER_BYTES; i++) {
+            flightNumbers.put(row * FLIGHT_NUMBER_BYTES + i, (byte) 0);
+        }
+        flightIds[row] = flight.id;
+        departures.put(row, Math.toIntExact(Connection.epochMinute(departure)));
+        arrivals.put(row, Math.toIntExact(Connection.epochMinute(arrival)));
+        putPrices(row, seatPrices, featurePrices);
+        rowsByFlight.computeIfAbsent(flight.id, key -> new RowList()).add(row);
+        size++;
+        buffer.putInt(0, size);
+        return id;
+    }
+
+    // Called by a materialized schedule, with its lock held, whenever its prices change
+    synchronized void writePrices(Schedule schedule) {
+        int row = rowOf(schedule.id);
+        if (row >= 0) putPrices(row, schedule.seatPrices, schedule.featurePrices);
+    }
+
+    private void putPrices(int row, Map<SeatType, BigDecimal> seatPrices, Map<SeatFeature, BigDecimal> featurePrices) {
+        for (SeatType type : SeatType.values()) {
+            prices[type.ordinal()].put(row, minorUnits(seatPrices.get(type)));
+        }
+        for (SeatFeature feature : SeatFeature.values()) {
+            prices[SeatType.values().length + feature.ordinal()].put(row, minorUnits(featurePrices.get(feature)));
+        }
+    }
+
+    private long minorUnits(BigDecimal price) {
+        return price == null ? NO_PRICE : price.setScale(priceScale).unscaledValue().longValueExact();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized int rowOf(int id) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int current = ids.get(mid);
+            if (current < id) low = mid + 1;
+            else if (current > id) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    int flightIdAt(int row) {
+        return flightIds[row];
+    }
+
+    private String flightNumberAt(int row) {
+        int start = row * FLIGHT_NUMBER_BYTES, length = 0;
+        while (length < FLIGHT_NUMBER_BYTES && flightNumbers.get(start + length) != 0) length++;
+        byte[] bytes = new byte[length];
+        flightNumbers.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    synchronized int rowCount(Flight flight) {
+        RowList rows = rowsByFlight.get(flight.id);
+        return rows == null ? 0 : rows.size;
+    }
+
+    synchronized int[] rowsOf(Flight flight) {
+        RowList rows = rowsByFlight.get(flight.id);
+        return rows == null ? new int[0] : Arrays.copyOf(rows.rows, rows.size);
+    }
+
+    // The flight's timetable straight from the columns, without materializing schedules
+    synchronized void connections(Flight flight, Consumer<Connection> sink) {
+        RowList rows = rowsByFlight.get(flight.id);
+        for (int i = 0; rows != null && i < rows.size; i++) {
+            int row = rows.rows[i];
+            sink.accept(new Connection(flight, ids.get(row), flight.source.id, flight.destination.id, departures.get(row), arrivals.get(row)));
+        }
+    }
+
+    // Queues the flight's rows into the calendar from the price columns, without materializing
+    // schedules. Runs under the store's lock so a price written back afterwards is queued after.
+    synchronized void publishFares(Flight flight, FareCalendar calendar) {
+        RowList rows = rowsByFlight.get(flight.id);
+        for (int i = 0; rows != null && i < rows.size; i++) {
+            int row = rows.rows[i];
+            BigDecimal[] fares = new BigDecimal[SeatType.values().length];
+            for (SeatType type : SeatType.values()) {
+                long price = prices[type.ordinal()].get(row);
+                if (price != NO_PRICE) fares[type.ordinal()] = BigDecimal.valueOf(price, priceScale);
+            }
+            calendar.scheduleStored(flight, ids.get(row), toDateTime(departures.get(row)).toLocalDate(), fares);
+        }
+    }
+
+    Schedule schedule(int row, Flight flight) {
+        int id = ids.get(row);
+        CachedSchedule cached = materialized.get(id);
+        Schedule schedule = cached == null ? null : cached.get();
+        if (schedule != null) return schedule;
+        synchronized (this) {
+            for (Reference<? extends Schedule> cleared; (cleared = collected.poll()) != null; ) {
+                materialized.remove(((CachedSchedule) cleared).id, cleared);
+            }
+            cached = materialized.get(id);
+            schedule = cached == null ? null : cached.get();
+            if (schedule == null) {
+                schedule = new Schedule(id, flight, toDateTime(departures.get(row)), toDateTime(arrivals.get(row)), Set.of());
+                for (SeatType type : SeatType.values()) {
+                    long price = prices[type.ordinal()].get(row);
+                    if (price != NO_PRICE) schedule.seatPrices.put(type, BigDecimal.valueOf(price, priceScale));
+                }
+                for (SeatFeature feature : SeatFeature.values()) {
+                    long price = prices[SeatType.values().length + feature.ordinal()].get(row);
+                    if (price != NO_PRICE) schedule.featurePrices.put(feature, BigDecimal.valueOf(price, priceScale));
+                }
+                schedule.store = this;
+                materialized.put(id, new CachedSchedule(schedule, collected));
+            }
+            return schedule;
+        }
+    }
+
+    private static LocalDateTime toDateTime(int epochMinute) {
+        return LocalDateTime.ofEpochSecond(epochMinute * 60L, 0, ZoneOffset.UTC);
+    }
+
+    Map<Integer, Schedule> schedulesOf(Flight flight) {
+        return new FlightSchedules(this, flight);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
+
+// Read-only Map view of one flight's rows in a ColumnarScheduleStore, so Flight.schedules
+// keeps its lookup API whichever way schedules are stored.
+class FlightSchedules extends AbstractMap<Integer, Schedule> {
+    private final ColumnarScheduleStore store;
+    private final Flight flight;
+
+    FlightSchedules(ColumnarScheduleStore store, Flight flight) {
+        this.store = store;
+        this.flight = flight;
+    }
+
+    @Override
+    public Schedule get(Object key) {
+        if (!(key instanceof Integer id)) return null;
+        int row = store.rowOf(id);
+        if (row < 0 || store.flightIdAt(row) != flight.id) return null;
+        return store.schedule(row, flight);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return store.rowCount(flight);
+    }
+
+    void connections(Consumer<Connection> sink) {
+        store.connections(flight, sink);
+    }
+
+    void publishFares(FareCalendar calendar) {
+        store.publishFares(flight, calendar);
+    }
+
+    @Override
+    public Set<Entry<Integer, Schedule>> entrySet() {
+        int[] rows = store.rowsOf(flight);
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<Integer, Schedule>> iterator() {
+                return new Iterator<>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < rows.length;
+                    }
+
+                    @Override
+                    public Entry<Integer, Schedule> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        Schedule schedule = store.schedule(rows[next++], flight);
+                        return new SimpleImmutableEntry<>(schedule.id, schedule);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return rows.length;
+            }
+        };
+    }
+}
+
+record Connection(Flight flight, int scheduleId, int from, int to, long departure, long arrival) {
+    static long epochMinute(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) / 60;
+    }
+}
+
+record Itinerary(List<Schedule> legs) {
+    LocalDateTime departure() {
+        return legs.get(0).departure;
+    }
+
+    LocalDateTime arrival() {
+        return legs.get(legs.size() - 1).arrival;
+    }
+
+    int stops() {
+        return legs.size() - 1;
+    }
+}
+
+// Departures of every airport sorted by time, so the onward legs of a connection are a
+// binary search plus a short walk up to the maximum layover. Built once from a snapshot of
+// the flights and never changed, so searches share it without locking.
+//
+// Searches are a connection scan over labels: each reached connection keeps the
+// Pareto-optimal (departure from the source, legs) pairs that can board it, and connections
+// are settled in departure order, so every label that can reach one is known before it is
+// extended. Labels on one connection share its arrival, which is why departure and legs are
+// enough to compare them even with a maximum layover. Legs whose arrival airport cannot
+// reach the destination within the remaining stops are pruned.
+class RouteIndex {
+    private final Map<Integer, Connection[]> departures;
+    private final Map<Integer, Set<Integer>> inbound;
+    private final Map<Integer, Map<Integer, Integer>> legsToDestination = new ConcurrentHashMap<>();
+    private final Map<Integer, Duration> minimumConnectionTimes;
+    private final Duration defaultConnectionTime;
+    private final Duration maximumLayover;
+
+    RouteIndex(Collection<Flight> flights, Map<Integer, Duration> minimumConnectionTimes, Duration defaultConnectionTime, Duration maximumLayover) {
+        this.minimumConnectionTimes = minimumConnectionTimes;
+        this.defaultConnectionTime = defaultConnectionTime;
+        this.maximumLayover = maximumLayover;
+        Map<Integer, List<Connection>> byAirport = new HashMap<>();
+        Map<Integer, Set<Integer>> sources = new HashMap<>();
+        for (Flight flight : flights) {
+            sources.computeIfAbsent(flight.destination.id, id -> new HashSet<>()).add(flight.source.id);
+            List<Connection> connections = byAirport.computeIfAbsent(flight.source.id, id -> new ArrayList<>());
+            if (flight.schedules instanceof FlightSchedules stored) {
+                stored.connections(connections::add);
+                continue;
+            }
+            for (Schedule schedule : flight.schedules.values()) {
+                connections.add(new Connection(flight, schedule.id, flight.source.id, flight.destination.id,
+                        Connection.epochMinute(schedule.departure), Connection.epochMinute(schedule.arrival)));
+            }
+        }
+        Map<Integer, Connection[]> sorted = new HashMap<>();
+        byAirport.forEach((airport, connections) -> {
+            connections.sort(Comparator.comparingLong(Connection::departure));
+            sorted.put(airport, connections.toArray(Connection[]::new));
+        });
+        this.departures = Map.copyOf(sorted);
+        this.inbound = Map.copyOf(sources);
+    }
+
+    private record Label(long departure, int legs, Connection leg, Label previous) {
+        boolean visits(int airport) {
+            for (Label label = this; label != null; label = label.previous) {
+                if (label.leg.from() == airport) return true;
+            }
+            return false;
+        }
+    }
+
+    // Pareto-optimal itineraries leaving on the date: none departs earlier, arrives later
+    // and has more stops than another. Sorted by arrival, then stops.
+    List<Itinerary> search(Airport source, Airport destination, LocalDate date, int maxStops) {
+        Map<Integer, Integer> legsTo = legsToDestination.computeIfAbsent(destination.id, this::legsTo);
+        int maxLegs = maxStops + 1;
+        if (legsTo.getOrDefault(source.id, Integer.MAX_VALUE) > maxLegs) return new ArrayList<>();
+        long from = Connection.epochMinute(date.atStartOfDay());
+        long to = Connection.epochMinute(date.plusDays(1).atStartOfDay());
+        Map<Connection, List<Label>> bags = new HashMap<>();
+        PriorityQueue<Connection> pending = new PriorityQueue<>(Comparator.comparingLong(Connection::departure));
+        Connection[] first = departures.getOrDefault(source.id, new Connection[0]);
+        for (int i = firstDepartingAt(first, from); i < first.length && first[i].departure() < to; i++) {
+            board(first[i], new Label(first[i].departure(), 1, first[i], null), maxLegs, legsTo, bags, pending);
+        }
+        List<Label> arrivals = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            Connection leg = pending.poll();
+            List<Label> bag = bags.get(leg);
+            if (leg.to() == destination.id) {
+                arrivals.addAll(bag);
+                continue;
+            }
+            Connection[] onward = departures.getOrDefault(leg.to(), new Connection[0]);
+            long earliest = leg.arrival() + minimumConnectionTimes.getOrDefault(leg.to(), defaultConnectionTime).toMinutes();
+            long latest = leg.arrival() + maximumLayover.toMinutes();
+            for (int i = firstDepartingAt(onward, earliest); i < onward.length && onward[i].departure() <= latest; i++) {
+                for (Label label : bag) {
+                    if (label.visits(onward[i].to())) continue;
+                    board(onward[i], new Label(label.departure(), label.legs() + 1, onward[i], label), maxLegs, legsTo, bags, pending);
+                }
+            }
+        }
+        return paretoFront(arrivals, maxLegs);
+    }
+
+    // Adds the label to the connection's bag unless a label there departs no earlier with
+    // no more legs, dropping the labels it beats in turn
+    private static void board(Connection leg, Label label, int maxLegs, Map<Integer, Integer> legsTo, Map<Connection, List<Label>> bags,
+                              PriorityQueue<Connection> pending) {
+        if (legsTo.getOrDefault(leg.to(), Integer.MAX_VALUE) > maxLegs - label.legs()) return;
+        List<Label> bag = bags.get(leg);
+        if (bag == null) {
+            bag = new ArrayList<>(2);
+            bags.put(leg, bag);
+            pending.add(leg);
+        }
+        for (Label kept : bag) {
+            if (kept.departure() >= label.departure() && kept.legs() <= label.legs()) return;
+        }
+        bag.removeIf(kept -> label.departure() >= kept.departure() && label.legs() <= kept.legs());
+        bag.add(label);
+    }
+
+    private static int firstDepartingAt(Connection[] connections, long minute) {
+        int low = 0, high = connections.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (connections[mid].departure() < minute) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // Fewest legs from each airport to the destination, by breadth-first search over routes
+    private Map<Integer, Integer> legsTo(int destination) {
+        Map<Integer, Integer> legs = new HashMap<>(Map.of(destination, 0));
+        Deque<Integer> queue = new ArrayDeque<>(List.of(destination));
+        while (!queue.isEmpty()) {
+            int airport = queue.poll();
+            for (int previous : inbound.getOrDefault(airport, Set.of())) {
+                if (legs.putIfAbsent(previous, legs.get(airport) + 1) == null) queue.add(previous);
+            }
+        }
+        return legs;
+    }
+
+    // In arrival order a label survives only if it departs later than every kept one with as
+    // few legs; latestDeparture[n] is the latest kept departure with at most n legs.
+    private static List<Itinerary> paretoFront(List<Label> arrivals, int maxLegs) {
+        arrivals.sort(Comparator.comparingLong((Label label) -> label.leg().arrival()).thenComparingInt(Label::legs)
+                .thenComparing(Label::departure, Comparator.reverseOrder()));
+        long[] latestDeparture = new long[maxLegs + 1];
+        Arrays.fill(latestDeparture, Long.MIN_VALUE);
+        List<Itinerary> front = new ArrayList<>();
+        for (Label label : arrivals) {
+            if (latestDeparture[label.legs()] >= label.departure()) continue;
+            for (int legs = label.legs(); legs <= maxLegs; legs++) {
+                latestDeparture[legs] = Math.max(latestDeparture[legs], label.departure());
+            }
+            front.add(itinerary(label));
+        }
+        return front;
+    }
+
+    private static Itinerary itinerary(Label last) {
+        Deque<Schedule> legs = new ArrayDeque<>();
+        for (Label label = last; label != null; label = label.previous()) {
+            legs.addFirst(label.leg().flight().schedules.get(label.leg().scheduleId()));
+        }
+        return new Itinerary(List.copyOf(legs));
     }
 }
 
@@ -152,22 +1062,358 @@ class AirlineManager {
         airlines.put(airline.id, airline);
     }
 
-    void removeAirline(Airline airline) {
-        airlines.remove(airline.id);
+    void removeAirline(Airline airline) {
+        airlines.remove(airline.id);
+    }
+
+
+}
+
+record FareOffer(Airline airline, Flight flight, Schedule schedule, SeatType seatType, BigDecimal fare, int seatsLeft) {
+}
+
+// dropped holds the airlines that missed the deadline or failed
+record FareSearchResult(List<FareOffer> offers, Set<Integer> dropped) {
+}
+
+class AirlineLatency {
+    final LongAdder calls = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder totalNanos = new LongAdder();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos, boolean failed) {
+        calls.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+        if (failed) failures.increment();
+    }
+
+    Duration average() {
+        long count = calls.sum();
+        return Duration.ofNanos(count == 0 ? 0 : totalNanos.sum() / count);
+    }
+
+    Duration max() {
+        return Duration.ofNanos(maxNanos.get());
+    }
+}
+
+// Queries every airline in parallel on a bounded pool and hands each airline's offers to the
+// caller as they arrive. Airlines still running at the deadline are cancelled, which
+// interrupts their query, and left out, so one slow airline bounds nothing but its own
+// results. Latency is recorded per airline even for answers that come in too late.
+// The partial callback runs one airline at a time and never after search returns; a slow
+// callback holds up the other airlines' answers and the deadline's cut-off.
+class FareSearchExecutor {
+    private final ExecutorService executor;
+    final Map<Integer, AirlineLatency> latencies = new ConcurrentHashMap<>();
+
+    FareSearchExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    FareSearchResult search(Collection<Airline> airlines, Airport source, Airport destination, LocalDate date, SeatType type,
+                            Duration deadline, Consumer<List<FareOffer>> partial) {
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        List<FareOffer> offers = new ArrayList<>();
+        Set<Integer> answered = new HashSet<>();
+        boolean[] closed = {false};
+        CountDownLatch pending = new CountDownLatch(airlines.size());
+        Map<Airline, Future<?>> queries = new LinkedHashMap<>();
+        for (Airline airline : airlines) {
+            long started = System.nanoTime();
+            queries.put(airline, executor.submit(() -> {
+                boolean failed = true;
+                try {
+                    List<FareOffer> result = offers(airline, source, destination, date, type);
+                    failed = false;
+                    synchronized (offers) {
+                        if (closed[0]) return;
+                        offers.addAll(result);
+                        answered.add(airline.id);
+                        if (partial != null) partial.accept(result);
+                    }
+                } finally {
+                    latency(airline).record(System.nanoTime() - started, failed);
+                    pending.countDown();
+                }
+            }));
+        }
+        try {
+            pending.await(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Set<Integer> dropped = new HashSet<>();
+        List<FareOffer> result;
+        synchronized (offers) {
+            closed[0] = true;
+            result = new ArrayList<>(offers);
+            for (Map.Entry<Airline, Future<?>> query : queries.entrySet()) {
+                if (answered.contains(query.getKey().id)) continue;
+                dropped.add(query.getKey().id);
+                if (!query.getValue().isDone()) {
+                    latency(query.getKey()).timeouts.increment();
+                    query.getValue().cancel(true);
+                }
+            }
+        }
+        result.sort(Comparator.comparing(FareOffer::fare).thenComparing(offer -> offer.schedule().departure));
+        return new FareSearchResult(result, dropped);
+    }
+
+    private AirlineLatency latency(Airline airline) {
+        return latencies.computeIfAbsent(airline.id, id -> new AirlineLatency());
+    }
+
+    static List<FareOffer> offers(Airline airline, Airport source, Airport destination, LocalDate date, SeatType type) {
+        List<FareOffer> offers = new ArrayList<>();
+        for (Flight flight : airline.flights.values()) {
+            if (Thread.currentThread().isInterrupted()) throw new CancellationException("Fare search for airline " + airline.id + " was cancelled.");
+            if (flight.source != source || flight.destination != destination) continue;
+            for (Schedule schedule : flight.schedules.values()) {
+                if (!schedule.departure.toLocalDate().equals(date) || !schedule.seatPrices.containsKey(type)) continue;
+                offers.add(new FareOffer(airline, flight, schedule, type, schedule.fares().fare(type), schedule.seatBookings.availableCount(type)));
+            }
+        }
+        return offers;
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+}
+
+// Lowest one-flyer fare per SeatType for each (source, destination, departure date) of
+// direct flights, so a month-long calendar is a range read instead of a scan of every
+// schedule. Changes are queued and applied on one background thread; only the changed
+// schedule's day is recomputed, from the few schedules departing that day. Repeated
+// changes to a schedule waiting in the queue are applied once.
+class FareCalendar {
+    private record Placement(long route, LocalDate date) {
+    }
+
+    // Lowest one-flyer fare per SeatType ordinal of one schedule, null where it has no price
+    private record Fares(Placement placement, BigDecimal[] fares) {
+    }
+
+    // Published days per route; each fares array is replaced, never modified
+    private final Map<Long, ConcurrentNavigableMap<LocalDate, BigDecimal[]>> routes = new ConcurrentHashMap<>();
+    // Owned by the update thread
+    private final Map<Long, Map<LocalDate, Map<Integer, BigDecimal[]>>> days = new HashMap<>();
+    private final Map<Integer, Placement> placements = new HashMap<>();
+    // A schedule's fares are read when its change is applied; a stored row's when it is queued
+    private final Map<Integer, Supplier<Fares>> pending = new ConcurrentHashMap<>();
+    private final ExecutorService updates = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fare-calendar");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static long route(Airport source, Airport destination) {
+        return ((long) source.id << 32) | destination.id;
+    }
+
+    void scheduleChanged(Schedule schedule) {
+        enqueue(schedule.id, () -> faresOf(schedule));
+    }
+
+    // For a schedule row read from a store; fares are indexed by SeatType ordinal
+    void scheduleStored(Flight flight, int scheduleId, LocalDate date, BigDecimal[] fares) {
+        Fares stored = new Fares(new Placement(route(flight.source, flight.destination), date), fares);
+        enqueue(scheduleId, () -> stored);
+    }
+
+    private void enqueue(int scheduleId, Supplier<Fares> fares) {
+        if (pending.put(scheduleId, fares) == null) updates.execute(() -> refresh(scheduleId));
+    }
+
+    void scheduleRemoved(Schedule schedule) {
+        scheduleRemoved(schedule.id);
+    }
+
+    void scheduleRemoved(int scheduleId) {
+        updates.execute(() -> {
+            pending.remove(scheduleId);
+            remove(scheduleId);
+        });
+    }
+
+    private void refresh(int scheduleId) {
+        Supplier<Fares> change = pending.remove(scheduleId);
+        if (change == null) return;
+        Fares fares = change.get();
+        Placement placement = fares.placement();
+        remove(scheduleId);
+        placements.put(scheduleId, placement);
+        days.computeIfAbsent(placement.route(), route -> new HashMap<>())
+                .computeIfAbsent(placement.date(), date -> new HashMap<>()).put(scheduleId, fares.fares());
+        publish(placement);
+    }
+
+    private static Fares faresOf(Schedule schedule) {
+        BigDecimal[] fares = new BigDecimal[SeatType.values().length];
+        synchronized (schedule) {
+            FareTable table = schedule.fares();
+            for (SeatType type : SeatType.values()) {
+                if (schedule.seatPrices.containsKey(type)) fares[type.ordinal()] = table.fare(type);
+            }
+        }
+        return new Fares(new Placement(route(schedule.flight.source, schedule.flight.destination), schedule.departure.toLocalDate()), fares);
+    }
+
+    private void remove(int scheduleId) {
+        Placement placement = placements.remove(scheduleId);
+        if (placement == null) return;
+        days.get(placement.route()).get(placement.date()).remove(scheduleId);
+        publish(placement);
+    }
+
+    private void publish(Placement placement) {
+        Map<LocalDate, Map<Integer, BigDecimal[]>> routeDays = days.get(placement.route());
+        Map<Integer, BigDecimal[]> schedules = routeDays.get(placement.date());
+        ConcurrentNavigableMap<LocalDate, BigDecimal[]> published = routes.computeIfAbsent(placement.route(), route -> new ConcurrentSkipListMap<>());
+        if (schedules.isEmpty()) {
+            routeDays.remove(placement.date());
+            published.remove(placement.date());
+            return;
+        }
+        BigDecimal[] lowest = new BigDecimal[SeatType.values().length];
+        for (BigDecimal[] fares : schedules.values()) {
+            for (int type = 0; type < lowest.length; type++) {
+                if (fares[type] != null && (lowest[type] == null || fares[type].compareTo(lowest[type]) < 0)) lowest[type] = fares[type];
+            }
+        }
+        published.put(placement.date(), lowest);
+    }
+
+    Map<SeatType, BigDecimal> lowestFares(Airport source, Airport destination, LocalDate date) {
+        Map<SeatType, BigDecimal> lowest = new EnumMap<>(SeatType.class);
+        ConcurrentNavigableMap<LocalDate, BigDecimal[]> published = routes.get(route(source, destination));
+        BigDecimal[] fares = published == null ? null : published.get(date);
+        if (fares == null) return lowest;
+        for (SeatType type : SeatType.values()) {
+            if (fares[type.ordinal()] != null) lowest.put(type, fares[type.ordinal()]);
+        }
+        return lowest;
+    }
+
+    // One entry per day from `from`, null where nothing departs or the class has no price
+    List<BigDecimal> calendar(Airport source, Airport destination, SeatType type, LocalDate from, int days) {
+        BigDecimal[] calendar = new BigDecimal[days];
+        ConcurrentNavigableMap<LocalDate, BigDecimal[]> published = routes.get(route(source, destination));
+        if (published != null) {
+            for (Map.Entry<LocalDate, BigDecimal[]> day : published.subMap(from, from.plusDays(days)).entrySet()) {
+                calendar[(int) (day.getKey().toEpochDay() - from.toEpochDay())] = day.getValue()[type.ordinal()];
+            }
+        }
+        return Arrays.asList(calendar);
     }
 
+    // Returns once every change queued before the call is visible to readers
+    void awaitUpdates() {
+        CompletableFuture.runAsync(() -> {
+        }, updates).join();
+    }
 
+    void stop() {
+        updates.shutdownNow();
+    }
 }
 
 class FlightManager {
     Map<Integer, Flight> flights = new HashMap<>();
+    FareCalendar fareCalendar = new FareCalendar();
+    Map<Integer, Duration> minimumConnectionTimes = new HashMap<>();
+    Duration defaultConnectionTime = Duration.ofMinutes(60);
+    Duration maximumLayover = Duration.ofHours(12);
+    private volatile RouteIndex routeIndex;
 
-    void addFlight(Flight flight) {
+    synchronized void addFlight(Flight flight) {
         flights.put(flight.id, flight);
+        flight.fareCalendar = fareCalendar;
+        listFares(flight);
+        routeIndex = null;
     }
 
-    void removeFlight(Flight flight) {
+    synchronized void removeFlight(Flight flight) {
         flights.remove(flight.id);
+        unlistFares(flight);
+        flight.fareCalendar = null;
+        routeIndex = null;
+    }
+
+    // Serves the flight's schedules from the store's columns; add them through
+    // addSchedule(store, ...) from then on. Schedules the flight had before are dropped.
+    synchronized void useScheduleStore(Flight flight, ColumnarScheduleStore store) {
+        if (flight.fareCalendar != null) unlistFares(flight);
+        flight.schedules = store.schedulesOf(flight);
+        if (flight.fareCalendar != null) listFares(flight);
+        routeIndex = null;
+    }
+
+    // Stored schedules go to the calendar straight from the columns rather than one by one
+    private void listFares(Flight flight) {
+        if (flight.schedules instanceof FlightSchedules stored) {
+            stored.publishFares(flight.fareCalendar);
+            return;
+        }
+        for (Schedule schedule : flight.schedules.values()) {
+            flight.fareCalendar.scheduleChanged(schedule);
+        }
+    }
+
+    private void unlistFares(Flight flight) {
+        if (flight.schedules instanceof FlightSchedules stored) {
+            stored.connections(connection -> flight.fareCalendar.scheduleRemoved(connection.scheduleId()));
+            return;
+        }
+        for (Schedule schedule : flight.schedules.values()) {
+            flight.fareCalendar.scheduleRemoved(schedule);
+        }
+    }
+
+    synchronized void addSchedule(Flight flight, Schedule schedule) {
+        flight.addSchedule(schedule);
+        if (flight.fareCalendar != null) flight.fareCalendar.scheduleChanged(schedule);
+        routeIndex = null;
+    }
+
+    synchronized void removeSchedule(Flight flight, Schedule schedule) {
+        flight.removeSchedule(schedule);
+        if (flight.fareCalendar != null) flight.fareCalendar.scheduleRemoved(schedule);
+        routeIndex = null;
+    }
+
+    synchronized int addSchedule(ColumnarScheduleStore store, Flight flight, LocalDateTime departure, LocalDateTime arrival,
+                    Map<SeatType, BigDecimal> seatPrices, Map<SeatFeature, BigDecimal> featurePrices) {
+        int id = store.add(flight, departure, arrival, seatPrices, featurePrices);
+        if (flight.fareCalendar != null) flight.fareCalendar.scheduleChanged(flight.schedules.get(id));
+        routeIndex = null;
+        return id;
+    }
+
+    synchronized void setMinimumConnectionTime(Airport airport, Duration connectionTime) {
+        minimumConnectionTimes.put(airport.id, connectionTime);
+        routeIndex = null;
+    }
+
+    // The index is rebuilt on the first search after flights or schedules change. Changes and
+    // the rebuild hold the manager's lock, so the index sees a consistent snapshot, and the
+    // volatile field publishes it fully built to searches on other threads.
+    List<Itinerary> search(Airport source, Airport destination, LocalDate date, int maxStops) {
+        RouteIndex index = routeIndex;
+        if (index == null) index = rebuildRouteIndex();
+        return index.search(source, destination, date, maxStops);
+    }
+
+    private synchronized RouteIndex rebuildRouteIndex() {
+        if (routeIndex == null) {
+            routeIndex = new RouteIndex(List.copyOf(flights.values()), Map.copyOf(minimumConnectionTimes), defaultConnectionTime, maximumLayover);
+        }
+        return routeIndex;
     }
 
 }
@@ -206,11 +1452,11 @@ class Flyer {
 }
 
 enum BookingStatus {
-    PENDING, CONFIRMED, CANCELLED
+    PENDING, CONFIRMED, WAITLISTED, CANCELLED
 }
 
 class Booking {
-    private static int idCounter = 0;
+    private static final AtomicInteger idCounter = new AtomicInteger();
     int id;
     Flight flight;
     Schedule schedule;
@@ -221,10 +1467,19 @@ class Booking {
     SeatType flyingClass = SeatType.ECONOMY;
     BigDecimal amountPaid = BigDecimal.ZERO;
     MakeMyTrip system;
+    // Higher is promoted first off the waitlist, e.g. for loyalty tiers
+    int waitlistPriority = 0;
+    WaitlistEntry waitlistEntry;
+    // Seat indices this booking holds in the schedule's inventory, null while it holds none
+    int[] reservedSeats;
 
 
     public Booking(Flight flight, Schedule schedule, List<Flyer> flyers, SeatType flyingClass, MakeMyTrip system) {
-        id = ++idCounter;
+        this(idCounter.incrementAndGet(), flight, schedule, flyers, flyingClass, system);
+    }
+
+    Booking(int id, Flight flight, Schedule schedule, List<Flyer> flyers, SeatType flyingClass, MakeMyTrip system) {
+        this.id = id;
         this.flight = flight;
         this.schedule = schedule;
         this.flyers = flyers;
@@ -233,17 +1488,27 @@ class Booking {
         this.system = system;
     }
 
+    // Keeps ids of bookings recovered from the ledger from being handed out again
+    static void reserveIds(int upTo) {
+        idCounter.accumulateAndGet(upTo, Math::max);
+    }
+
     BigDecimal billedAmount(){
-        BigDecimal amount = BigDecimal.ZERO;
-        for(Flyer flyer: flyers){
-            amount = amount.add(schedule.seatPrices.getOrDefault(flyer.seat != null ? flyer.seat.type :  flyingClass, BigDecimal.ZERO));
-            if(flyer.seat != null ){
-                for(SeatFeature feature: flyer.seat.features){
-                    amount = amount.add(schedule.featurePrices.getOrDefault(feature, BigDecimal.ZERO));
-                }
-            }
+        return schedule.fares().quote(flyers, flyingClass);
+    }
+
+    // Seated means every flyer holds a reserved seat; a booking waiting for seats keeps any
+    // preselected ones on its flyers without holding them
+    boolean isSeated() {
+        return status == BookingStatus.CONFIRMED && waitlistEntry == null;
+    }
+
+    // Only bookings registered with the BookingManager are journaled; replay has no booking
+    // to apply the state of any other to
+    void recordState() {
+        if (system != null && system.bookingManager.ledger != null && system.bookingManager.bookings.get(id) == this) {
+            system.bookingManager.ledger.bookingState(this);
         }
-        return amount;
     }
     
     void addPayment(Payment payment) {
@@ -251,57 +1516,209 @@ class Booking {
     }
 
 
-    void allocateSeats() {
+    // All flyers get their seats or none do; a party is seated together when a row allows it.
+    // Preselected seats another booking holds are given up and the party is seated without
+    // them, so it never waits on a seat that may not come back.
+    boolean allocateSeats() {
+        if(reservedSeats != null) return true;
+        List<Seat> preselected = new ArrayList<>();
+        List<Flyer> unseated = new ArrayList<>();
         for(Flyer flyer: flyers){
-            if(flyer.seat == null){
-                for(Seat seat: flight.aircraft.seats){
-                    if(!schedule.seatBookings.contains(seat.identifier)){
-                        flyer.seat = seat;
-                        schedule.seatBookings.add(seat.identifier);
-                        break;
-                    }
+            if(flyer.seat != null) preselected.add(flyer.seat);
+            else unseated.add(flyer);
+        }
+        List<Seat> seats = schedule.seatBookings.allocate(flyingClass, preselected, unseated.size());
+        if(seats == null){
+            boolean dropped = false;
+            for(Flyer flyer: flyers){
+                if(flyer.seat != null && schedule.seatBookings.isBooked(flyer.seat)){
+                    flyer.seat = null;
+                    dropped = true;
                 }
             }
+            return dropped && allocateSeats();
+        }
+        for(int i = 0; i < unseated.size(); i++){
+            unseated.get(i).seat = seats.get(i);
         }
+        reservedSeats = new int[flyers.size()];
+        for(int i = 0; i < reservedSeats.length; i++){
+            reservedSeats[i] = schedule.seatBookings.seatMap.indexOf(flyers.get(i).seat);
+        }
+        return true;
     }
 
+    // Frees only the seats this booking reserved; a preselected seat it never got may belong
+    // to someone else
     void releaseSeats() {
         for(Flyer flyer: flyers){
-            if(flyer.seat != null){
-                schedule.seatBookings.remove(flyer.seat.identifier);
-                flyer.seat = null;
-            }
+            flyer.seat = null;
+        }
+        if(reservedSeats != null){
+            schedule.seatBookings.release(reservedSeats);
+            reservedSeats = null;
         }
     }
     
 
 
-    void makePayment(Payment payment) {
-        if(payment.status == PaymentStatus.SUCCESS && billedAmount().equals(payment.amount)){
+    // Only a pending booking takes a payment, so a retried payment cannot confirm it twice
+    synchronized boolean acceptsPayment(BigDecimal amount) {
+        return status == BookingStatus.PENDING && billedAmount().equals(amount);
+    }
+
+    synchronized void makePayment(Payment payment) {
+        if(payment.status == PaymentStatus.SUCCESS && acceptsPayment(payment.amount)){
             addPayment(payment);
             this.status = BookingStatus.CONFIRMED;
             this.amountPaid = payment.amount;
-            allocateSeats();
+            if(!allocateSeats()) system.waitlistEngine.unseated(this);
+            recordState();
         }
        
     }
 
-    void cancelBooking() {
-        if(status == BookingStatus.CONFIRMED && this.amountPaid.compareTo(billedAmount()) == 0) {
+    synchronized void cancelBooking() {
+        // Paid and not yet refunded; the bill may have changed since if a taken preselected seat was dropped
+        if((status == BookingStatus.CONFIRMED || status == BookingStatus.WAITLISTED) && this.amountPaid.signum() > 0) {
+            // Withdrawn first so a promotion in flight either finishes before this or never starts
+            if(waitlistEntry != null) system.waitlistEngine.withdraw(this);
             this.status = BookingStatus.CANCELLED;
+            BigDecimal refund = this.amountPaid.negate();
             this.amountPaid = BigDecimal.ZERO;
-            Payment payment = system.paymentManager.createSuccessPayment(this.amountPaid.multiply(BigDecimal.valueOf(-1)));
+            Payment payment = system.paymentManager.createSuccessPayment(refund, this, null);
             addPayment(payment);
             releaseSeats();
+            recordState();
+            system.waitlistEngine.seatsReleased(schedule, flyingClass);
+        }
+    }
+}
+
+// Overbooked bookings are confirmed but still owed seats, so they rank ahead of the
+// waitlist; then higher waitlistPriority, then first come first served.
+record WaitlistEntry(Booking booking, boolean overbooked, long sequence) implements Comparable<WaitlistEntry> {
+    @Override
+    public int compareTo(WaitlistEntry other) {
+        if (overbooked != other.overbooked) return overbooked ? -1 : 1;
+        if (booking.waitlistPriority != other.booking.waitlistPriority) {
+            return Integer.compare(other.booking.waitlistPriority, booking.waitlistPriority);
+        }
+        return Long.compare(sequence, other.sequence);
+    }
+}
+
+class ScheduleWaitlist {
+    final Schedule schedule;
+    final Map<SeatType, PriorityBlockingQueue<WaitlistEntry>> queues = new EnumMap<>(SeatType.class);
+    final Map<SeatType, Integer> overbooked = new EnumMap<>(SeatType.class);
+
+    ScheduleWaitlist(Schedule schedule) {
+        this.schedule = schedule;
+        for (SeatType type : SeatType.values()) {
+            queues.put(type, new PriorityBlockingQueue<>());
+            overbooked.put(type, 0);
+        }
+    }
+}
+
+// Paid bookings that could not be seated are either confirmed as overbooked, while the
+// class is within capacity * (ratio - 1) extra flyers, or waitlisted. Cancellations hand
+// promotion to a background thread, so cancelBooking never waits on it.
+class WaitlistEngine {
+    private final Map<SeatType, Double> overbookingRatios = new EnumMap<>(SeatType.class);
+    private final Map<Integer, ScheduleWaitlist> waitlists = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ExecutorService promotions = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "waitlist-promotion");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    void setOverbookingRatio(SeatType type, double ratio) {
+        if (ratio < 1) throw new IllegalArgumentException("Overbooking ratio must be at least 1.");
+        overbookingRatios.put(type, ratio);
+    }
+
+    ScheduleWaitlist waitlist(Schedule schedule) {
+        return waitlists.computeIfAbsent(schedule.id, id -> new ScheduleWaitlist(schedule));
+    }
+
+    void unseated(Booking booking) {
+        ScheduleWaitlist waitlist = waitlist(booking.schedule);
+        SeatType type = booking.flyingClass;
+        synchronized (waitlist) {
+            int capacity = 0;
+            for (int features = 0; features < SeatMap.FEATURE_COMBINATIONS; features++) {
+                capacity += waitlist.schedule.seatBookings.seatMap.groupSizes[type.ordinal()][features];
+            }
+            int allowance = (int) Math.floor(capacity * (overbookingRatios.getOrDefault(type, 1.0) - 1));
+            int flyers = booking.flyers.size();
+            boolean overbooked = waitlist.overbooked.get(type) + flyers <= allowance;
+            if (overbooked) {
+                waitlist.overbooked.merge(type, flyers, Integer::sum);
+            } else {
+                booking.status = BookingStatus.WAITLISTED;
+            }
+            booking.waitlistEntry = new WaitlistEntry(booking, overbooked, sequence.incrementAndGet());
+            waitlist.queues.get(type).add(booking.waitlistEntry);
+        }
+    }
+
+    void withdraw(Booking booking) {
+        ScheduleWaitlist waitlist = waitlist(booking.schedule);
+        synchronized (waitlist) {
+            WaitlistEntry entry = booking.waitlistEntry;
+            if (entry != null && waitlist.queues.get(booking.flyingClass).remove(entry) && entry.overbooked()) {
+                waitlist.overbooked.merge(booking.flyingClass, -booking.flyers.size(), Integer::sum);
+            }
+            booking.waitlistEntry = null;
+        }
+    }
+
+    void seatsReleased(Schedule schedule, SeatType type) {
+        ScheduleWaitlist waitlist = waitlists.get(schedule.id);
+        if (waitlist != null && !waitlist.queues.get(type).isEmpty()) promotions.execute(() -> promote(waitlist, type));
+    }
+
+    // Seats entries strictly in queue order; stops at the first party the class has no room
+    // for yet. A head whose preselected seat was taken is re-seated by allocateSeats rather
+    // than holding up the queue.
+    void promote(ScheduleWaitlist waitlist, SeatType type) {
+        synchronized (waitlist) {
+            PriorityBlockingQueue<WaitlistEntry> queue = waitlist.queues.get(type);
+            for (WaitlistEntry entry = queue.peek(); entry != null; entry = queue.peek()) {
+                Booking booking = entry.booking();
+                if (!booking.allocateSeats()) break;
+                queue.poll();
+                booking.waitlistEntry = null;
+                if (entry.overbooked()) waitlist.overbooked.merge(type, -booking.flyers.size(), Integer::sum);
+                booking.status = BookingStatus.CONFIRMED;
+                booking.recordState();
+            }
         }
     }
+
+    void stop() {
+        promotions.shutdownNow();
+    }
 }
 
 class BookingManager {
-    Map<Integer, Booking> bookings = new HashMap<>();
+    Map<Integer, Booking> bookings = new ConcurrentHashMap<>();
+    BookingLedger ledger;
 
     void addBooking(Booking booking) {
         bookings.put(booking.id, booking);
+        if (ledger != null) {
+            ledger.bookingCreated(booking);
+            ledger.bookingState(booking);
+        }
+    }
+
+    // Every ledger record of the booking, in order, read through the ledger's index
+    void history(int bookingId, BookingLedger.RecordVisitor visitor) {
+        if (ledger != null) ledger.history(bookingId, visitor);
     }
 
     void removeBooking(Booking booking) {
@@ -316,51 +1733,603 @@ enum PaymentStatus {
 
 
 class Payment {
-    private static int idCounter = 0;
+    private static final AtomicInteger idCounter = new AtomicInteger();
     int id;
     BigDecimal amount = BigDecimal.ZERO;
     PaymentStatus status;
+    int bookingId;
+    String idempotencyKey;
 
     public Payment(BigDecimal amount, PaymentStatus status) {
-        id = ++idCounter;
+        this(idCounter.incrementAndGet(), amount, status);
+    }
+
+    Payment(int id, BigDecimal amount, PaymentStatus status) {
+        this.id = id;
         this.amount = amount;
         this.status = status;
     }
+
+    static void reserveIds(int upTo) {
+        idCounter.accumulateAndGet(upTo, Math::max);
+    }
 }
 
 class PaymentManager {
-    Map<Integer, Payment> payments = new HashMap<>();
+    Map<Integer, Payment> payments = new ConcurrentHashMap<>();
+    Map<Integer, List<Payment>> bookingPayments = new ConcurrentHashMap<>();
+    BookingLedger ledger;
 
 
     void addPayment(Payment payment) {
         payments.put(payment.id, payment);
-
+        if (ledger != null) ledger.payment(payment);
+        if (payment.bookingId != 0) {
+            bookingPayments.computeIfAbsent(payment.bookingId, id -> new CopyOnWriteArrayList<>()).add(payment);
+        }
     }
 
     void removePayment(Payment payment) {
         payments.remove(payment.id);
-
+        List<Payment> forBooking = bookingPayments.get(payment.bookingId);
+        if (forBooking != null) forBooking.remove(payment);
     }
 
     Payment createSuccessPayment(BigDecimal amount){
-        Payment payment =  new Payment(amount, PaymentStatus.SUCCESS);
-        addPayment(payment);
-        return payment;
+        return createSuccessPayment(amount, null, null);
     }
 
     Payment createFailedPayment(BigDecimal amount){
-        Payment payment =  new Payment(amount, PaymentStatus.FAILED);
+        return createFailedPayment(amount, null, null);
+    }
+
+    Payment createSuccessPayment(BigDecimal amount, Booking booking, String idempotencyKey){
+        return create(amount, PaymentStatus.SUCCESS, booking, idempotencyKey);
+    }
+
+    Payment createFailedPayment(BigDecimal amount, Booking booking, String idempotencyKey){
+        return create(amount, PaymentStatus.FAILED, booking, idempotencyKey);
+    }
+
+    private Payment create(BigDecimal amount, PaymentStatus status, Booking booking, String idempotencyKey) {
+        Payment payment = new Payment(amount, status);
+        payment.bookingId = booking == null ? 0 : booking.id;
+        payment.idempotencyKey = idempotencyKey;
         addPayment(payment);
         return payment;
     }
+
+    // Net of a booking's successful payments and refunds, from the per-booking index. The
+    // lists are copy-on-write, so this reads a snapshot without locking out new payments.
+    BigDecimal settledAmount(Booking booking) {
+        BigDecimal settled = BigDecimal.ZERO;
+        for (Payment payment : bookingPayments.getOrDefault(booking.id, List.of())) {
+            if (payment.status == PaymentStatus.SUCCESS) settled = settled.add(payment.amount);
+        }
+        return settled;
+    }
+}
+
+// Most recently used idempotency keys with the request they were first used for and the
+// outcome of its first attempt. A retry of the same request gets that outcome, even while the
+// first attempt is still running; reusing a key for a different request is rejected. Only
+// completed attempts are kept: one that throws is forgotten, so the next retry runs again.
+class IdempotencyCache<T> {
+    private record Outcome<T>(Object request, CompletableFuture<T> result) {
+    }
+
+    private final Map<String, Outcome<T>> outcomes;
+
+    IdempotencyCache(int capacity) {
+        this.outcomes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Outcome<T>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // request is compared with equals, so it should be a value such as a record
+    T execute(String key, Object request, Supplier<T> attempt) {
+        Outcome<T> outcome;
+        boolean first = false;
+        synchronized (outcomes) {
+            outcome = outcomes.get(key);
+            if (outcome == null) {
+                outcome = new Outcome<>(request, new CompletableFuture<>());
+                outcomes.put(key, outcome);
+                first = true;
+            }
+        }
+        if (!outcome.request().equals(request)) {
+            throw new IllegalArgumentException("Idempotency key " + key + " was already used for " + outcome.request() + ", not " + request + ".");
+        }
+        if (first) {
+            try {
+                outcome.result().complete(attempt.get());
+            } catch (RuntimeException e) {
+                synchronized (outcomes) {
+                    outcomes.remove(key, outcome);
+                }
+                outcome.result().completeExceptionally(e);
+            }
+        }
+        try {
+            return outcome.result().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    void remember(String key, Object request, T value) {
+        synchronized (outcomes) {
+            outcomes.putIfAbsent(key, new Outcome<>(request, CompletableFuture.completedFuture(value)));
+        }
+    }
+}
+
+// What an idempotency key was first used for. Amounts are compared by value, so 100 and
+// 100.00 are the same request; a refund carries only its booking.
+record PaymentRequest(int bookingId, BigDecimal amount, PaymentStatus gatewayStatus) {
+    PaymentRequest {
+        if (amount != null) {
+            amount = amount.stripTrailingZeros();
+            if (amount.scale() < 0) amount = amount.setScale(0);
+        }
+    }
+
+    static PaymentRequest refund(Booking booking) {
+        return new PaymentRequest(booking.id, null, null);
+    }
+}
+
+record SettlementMismatch(int bookingId, BigDecimal amountPaid, BigDecimal settled) {
+}
+
+// Charges and refunds keyed by client idempotency keys, so a retried request returns the
+// original Payment instead of charging again. Settlement compares every booking's
+// amountPaid with the net of its own payments, looked up by booking rather than scanned.
+class PaymentPipeline {
+    private final PaymentManager paymentManager;
+    private final IdempotencyCache<Payment> processed;
+    ScheduledExecutorService settlement;
+
+    PaymentPipeline(PaymentManager paymentManager, int dedupeCapacity) {
+        this.paymentManager = paymentManager;
+        this.processed = new IdempotencyCache<>(dedupeCapacity);
+    }
+
+    Payment pay(String idempotencyKey, Booking booking, BigDecimal amount, PaymentStatus gatewayStatus) {
+        return processed.execute(idempotencyKey, new PaymentRequest(booking.id, amount, gatewayStatus), () -> {
+            synchronized (booking) {
+                if (booking.status != BookingStatus.PENDING) {
+                    throw new IllegalStateException("Booking " + booking.id + " is " + booking.status + " and cannot be paid again.");
+                }
+                // Checked before the charge is recorded, so a rejected amount never shows up as a SUCCESS payment
+                if (gatewayStatus == PaymentStatus.SUCCESS && !booking.acceptsPayment(amount)) {
+                    throw new IllegalArgumentException("Payment of " + amount + " does not match the bill of " + booking.billedAmount() + " for booking " + booking.id + ".");
+                }
+                Payment payment = gatewayStatus == PaymentStatus.SUCCESS
+                        ? paymentManager.createSuccessPayment(amount, booking, idempotencyKey)
+                        : paymentManager.createFailedPayment(amount, booking, idempotencyKey);
+                booking.makePayment(payment);
+                return payment;
+            }
+        });
+    }
+
+    // Charges recovered from the ledger, so retries from before a restart are still deduplicated
+    void remember(Payment payment) {
+        if (payment.idempotencyKey != null) {
+            processed.remember(payment.idempotencyKey, new PaymentRequest(payment.bookingId, payment.amount, payment.status), payment);
+        }
+    }
+
+    // The refund is the last payment cancelBooking adds; null if the booking was not cancellable
+    Payment cancel(String idempotencyKey, Booking booking) {
+        return processed.execute(idempotencyKey, PaymentRequest.refund(booking), () -> {
+            synchronized (booking) {
+                int before = booking.payment.size();
+                booking.cancelBooking();
+                return booking.payment.size() > before ? booking.payment.get(booking.payment.size() - 1) : null;
+            }
+        });
+    }
+
+    List<SettlementMismatch> settle(Collection<Booking> bookings) {
+        List<SettlementMismatch> mismatches = new ArrayList<>();
+        for (Booking booking : bookings) {
+            BigDecimal settled = paymentManager.settledAmount(booking);
+            BigDecimal amountPaid;
+            synchronized (booking) {
+                amountPaid = booking.amountPaid;
+            }
+            if (settled.compareTo(amountPaid) != 0) mismatches.add(new SettlementMismatch(booking.id, amountPaid, settled));
+        }
+        return mismatches;
+    }
+
+    void startSettlement(BookingManager bookingManager, Duration interval, Consumer<List<SettlementMismatch>> onMismatches) {
+        settlement = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-settlement");
+            thread.setDaemon(true);
+            return thread;
+        });
+        settlement.scheduleAtFixedRate(() -> {
+            List<SettlementMismatch> mismatches = settle(List.copyOf(bookingManager.bookings.values()));
+            if (!mismatches.isEmpty()) onMismatches.accept(mismatches);
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void stopSettlement() {
+        if (settlement != null) settlement.shutdownNow();
+    }
+}
+
+// Append-only ledger of booking and payment records in numbered segment files of at most
+// segmentSize bytes. Each record is [length][type][booking id][payload][crc32 of all but
+// the length]. Sealed segments are trimmed to their last record, so a torn record can only
+// be at the tail of the newest one, which is where replay stops. State records carry a
+// booking's absolute state, so only the last one of each booking matters. Segments stay
+// memory-mapped, and record positions by booking id, indexed while opening, serve a
+// booking's history without a scan. Writes reach the page cache, surviving a process crash;
+// sync() forces them to disk, as do rolling and closing.
+class BookingLedger implements Closeable {
+    static final byte BOOKING_CREATED = 1;
+    static final byte BOOKING_STATE = 2;
+    static final byte PAYMENT = 3;
+    private static final int HEADER = 9;
+
+    interface RecordVisitor {
+        void visit(byte type, int bookingId, ByteBuffer payload);
+    }
+
+    // Segment number in the high word, offset in the low
+    static final class Positions {
+        long[] at = new long[4];
+        int size;
+
+        void add(long position) {
+            if (size == at.length) at = Arrays.copyOf(at, size * 2);
+            at[size++] = position;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final CRC32 crc = new CRC32();
+    private final List<MappedByteBuffer> sealed = new ArrayList<>();
+    private final Map<Integer, Positions> index = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer active;
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    BookingLedger(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(file -> file.getFileName().toString().matches("ledger-\\d{8}\\.log")).sorted().toList();
+        }
+        for (int segment = 0; segment < files.size(); segment++) {
+            if (!files.get(segment).equals(segmentPath(segment))) {
+                throw new IllegalStateException("Ledger segment " + segmentPath(segment) + " is missing.");
+            }
+            if (segment == files.size() - 1) break;
+            try (FileChannel sealedChannel = FileChannel.open(files.get(segment), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = sealedChannel.map(FileChannel.MapMode.READ_ONLY, 0, sealedChannel.size());
+                if (scan(segment, buffer, null) != buffer.limit()) {
+                    throw new IllegalStateException("Ledger segment " + files.get(segment) + " is corrupt.");
+                }
+                sealed.add(buffer);
+            }
+        }
+        openActive();
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("ledger-%08d.log", segment));
+    }
+
+    private void openActive() throws IOException {
+        channel = FileChannel.open(segmentPath(sealed.size()), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentSize));
+        int end = scan(sealed.size(), active, null);
+        // Clears a torn record so what is appended over it cannot be mistaken for its tail
+        if (end + 4 <= active.limit() && active.getInt(end) != 0) {
+            for (int i = end; i < active.limit(); i++) {
+                active.put(i, (byte) 0);
+            }
+        }
+        active.position(end);
+    }
+
+    // Indexes records when visitor is null, otherwise hands them to it
+    private int scan(int segment, ByteBuffer buffer, RecordVisitor visitor) {
+        int position = 0;
+        while (position + 4 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length < HEADER - 4 || position + 8L + length > buffer.limit()) break;
+            crc.reset();
+            crc.update(buffer.slice(position + 4, length));
+            if ((int) crc.getValue() != buffer.getInt(position + 4 + length)) break;
+            int bookingId = buffer.getInt(position + 5);
+            if (visitor != null) {
+                visitor.visit(buffer.get(position + 4), bookingId, buffer.slice(position + HEADER, length + 4 - HEADER));
+            } else if (bookingId != 0) {
+                index.computeIfAbsent(bookingId, id -> new Positions()).add(((long) segment << 32) | position);
+            }
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    synchronized void replay(RecordVisitor visitor) {
+        for (int segment = 0; segment < sealed.size(); segment++) {
+            scan(segment, sealed.get(segment), visitor);
+        }
+        scan(sealed.size(), active.duplicate().limit(active.position()), visitor);
+    }
+
+    synchronized void history(int bookingId, RecordVisitor visitor) {
+        Positions positions = index.get(bookingId);
+        if (positions == null) return;
+        for (int i = 0; i < positions.size; i++) {
+            int segment = (int) (positions.at[i] >>> 32);
+            int position = (int) positions.at[i];
+            ByteBuffer buffer = segment < sealed.size() ? sealed.get(segment) : active;
+            int length = buffer.getInt(position);
+            visitor.visit(buffer.get(position + 4), bookingId, buffer.slice(position + HEADER, length + 4 - HEADER));
+        }
+    }
+
+    // Flights and schedules are keyed by flight number and departure minute, which survive a
+    // restart; their ids come from in-memory counters and do not
+    synchronized void bookingCreated(Booking booking) {
+        byte[] flightNumber = booking.flight.flightNumber.getBytes(StandardCharsets.UTF_8);
+        byte[][] flyers = new byte[booking.flyers.size() * 4][];
+        int size = 21 + flightNumber.length + booking.flyers.size();
+        for (int i = 0; i < booking.flyers.size(); i++) {
+            Flyer flyer = booking.flyers.get(i);
+            String[] fields = {flyer.name, flyer.contact, flyer.email, flyer.flyerNationalId};
+            for (int field = 0; field < fields.length; field++) {
+                flyers[4 * i + field] = fields[field] == null ? null : fields[field].getBytes(StandardCharsets.UTF_8);
+                size += 4 + (flyers[4 * i + field] == null ? 0 : flyers[4 * i + field].length);
+            }
+        }
+        ByteBuffer payload = scratch(size);
+        putBytes(payload, flightNumber);
+        payload.putLong(Connection.epochMinute(booking.schedule.departure)).put((byte) booking.flyingClass.ordinal());
+        payload.putInt(booking.flyers.size());
+        for (int i = 0; i < booking.flyers.size(); i++) {
+            for (int field = 0; field < 4; field++) {
+                putBytes(payload, flyers[4 * i + field]);
+            }
+            payload.put((byte) booking.flyers.get(i).flyerNationalIdType.ordinal());
+        }
+        append(BOOKING_CREATED, booking.id, payload.flip());
+    }
+
+    synchronized void bookingState(Booking booking) {
+        ByteBuffer payload = scratch(26 + 4 * booking.flyers.size() + 4 * booking.payment.size());
+        payload.put((byte) booking.status.ordinal()).put((byte) (booking.isSeated() ? 1 : 0));
+        putAmount(payload, booking.amountPaid);
+        payload.putInt(booking.waitlistPriority);
+        payload.putInt(booking.flyers.size());
+        for (Flyer flyer : booking.flyers) {
+            payload.putInt(flyer.seat == null ? -1 : booking.schedule.seatBookings.seatMap.indexOf(flyer.seat));
+        }
+        payload.putInt(booking.payment.size());
+        for (Payment payment : booking.payment) {
+            payload.putInt(payment.id);
+        }
+        append(BOOKING_STATE, booking.id, payload.flip());
+    }
+
+    synchronized void payment(Payment payment) {
+        byte[] key = payment.idempotencyKey == null ? null : payment.idempotencyKey.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = scratch(21 + (key == null ? 0 : key.length));
+        payload.putInt(payment.id);
+        putAmount(payload, payment.amount);
+        payload.put((byte) payment.status.ordinal());
+        putBytes(payload, key);
+        append(PAYMENT, payment.bookingId, payload.flip());
+    }
+
+    private ByteBuffer scratch(int size) {
+        if (scratch.capacity() < size) scratch = ByteBuffer.allocate(Math.max(size, 2 * scratch.capacity()));
+        return scratch.clear();
+    }
+
+    private static void putAmount(ByteBuffer buffer, BigDecimal amount) {
+        buffer.putLong(amount.unscaledValue().longValueExact()).putInt(amount.scale());
+    }
+
+    static BigDecimal getAmount(ByteBuffer buffer) {
+        return BigDecimal.valueOf(buffer.getLong(), buffer.getInt());
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void append(byte type, int bookingId, ByteBuffer payload) {
+        int length = HEADER - 4 + payload.remaining();
+        if (length + 8 > segmentSize) throw new IllegalArgumentException("Ledger record of " + length + " bytes does not fit a segment.");
+        try {
+            if (active.remaining() < length + 8) roll();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int start = active.position();
+        active.putInt(length).put(type).putInt(bookingId).put(payload);
+        crc.reset();
+        crc.update(active.slice(start + 4, length));
+        active.putInt((int) crc.getValue());
+        if (bookingId != 0) index.computeIfAbsent(bookingId, id -> new Positions()).add(((long) sealed.size() << 32) | start);
+    }
+
+    // Trims the full segment to its records and keeps it mapped read-only for lookups
+    private void roll() throws IOException {
+        int end = active.position();
+        active.force();
+        channel.truncate(end);
+        sealed.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, end));
+        channel.close();
+        openActive();
+    }
+
+    synchronized void sync() {
+        active.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        active.force();
+        channel.truncate(active.position());
+        channel.close();
+    }
+}
+
+// Rebuilds bookings and payments from ledger records onto the registered flights. Seats
+// are reserved in each schedule's SeatInventory only once every record is applied, from
+// each booking's final state; paid bookings that were still owed seats are queued again.
+class LedgerReplay implements BookingLedger.RecordVisitor {
+    private final MakeMyTrip system;
+    private final Map<Integer, Booking> bookings = new TreeMap<>();
+    private final Map<Integer, Payment> payments = new HashMap<>();
+    private final Map<Integer, int[]> bookingPayments = new HashMap<>();
+    private final Set<Integer> seated = new HashSet<>();
+
+    private Map<String, Schedule> schedules;
+
+    LedgerReplay(MakeMyTrip system) {
+        this.system = system;
+    }
+
+    // Registered schedules by flight number and departure minute, as BookingLedger keys them
+    private Map<String, Schedule> schedules() {
+        if (schedules == null) {
+            schedules = new HashMap<>();
+            for (Flight flight : system.flightManager.flights.values()) {
+                for (Schedule schedule : flight.schedules.values()) {
+                    schedules.putIfAbsent(flight.flightNumber + "@" + Connection.epochMinute(schedule.departure), schedule);
+                }
+            }
+        }
+        return schedules;
+    }
+
+    @Override
+    public void visit(byte type, int bookingId, ByteBuffer payload) {
+        switch (type) {
+            case BookingLedger.BOOKING_CREATED -> {
+                String flightNumber = BookingLedger.getString(payload);
+                long departure = payload.getLong();
+                Schedule schedule = schedules().get(flightNumber + "@" + departure);
+                if (schedule == null) {
+                    throw new IllegalStateException("Booking " + bookingId + " refers to unknown schedule of " + flightNumber + " departing at minute " + departure + ".");
+                }
+                Flight flight = schedule.flight;
+                SeatType flyingClass = SeatType.values()[payload.get()];
+                List<Flyer> flyers = new ArrayList<>();
+                for (int i = payload.getInt(); i > 0; i--) {
+                    Flyer flyer = new Flyer(BookingLedger.getString(payload), BookingLedger.getString(payload), BookingLedger.getString(payload));
+                    flyer.flyerNationalId = BookingLedger.getString(payload);
+                    flyer.flyerNationalIdType = FlyerNationalIdType.values()[payload.get()];
+                    flyers.add(flyer);
+                }
+                bookings.put(bookingId, new Booking(bookingId, flight, schedule, flyers, flyingClass, system));
+            }
+            case BookingLedger.BOOKING_STATE -> {
+                Booking booking = bookings.get(bookingId);
+                // Ledgers written before only registered bookings were journaled can hold these
+                if (booking == null) return;
+                booking.status = BookingStatus.values()[payload.get()];
+                if (payload.get() == 1) seated.add(bookingId);
+                else seated.remove(bookingId);
+                booking.amountPaid = BookingLedger.getAmount(payload);
+                booking.waitlistPriority = payload.getInt();
+                SeatMap seatMap = booking.schedule.seatBookings.seatMap;
+                for (int i = 0, flyers = payload.getInt(); i < flyers; i++) {
+                    int index = payload.getInt();
+                    booking.flyers.get(i).seat = index < 0 ? null : seatMap.seats[index];
+                }
+                int[] paymentIds = new int[payload.getInt()];
+                for (int i = 0; i < paymentIds.length; i++) {
+                    paymentIds[i] = payload.getInt();
+                }
+                bookingPayments.put(bookingId, paymentIds);
+            }
+            case BookingLedger.PAYMENT -> {
+                Payment payment = new Payment(payload.getInt(), BookingLedger.getAmount(payload), PaymentStatus.values()[payload.get()]);
+                payment.idempotencyKey = BookingLedger.getString(payload);
+                payment.bookingId = bookingId;
+                payments.put(payment.id, payment);
+            }
+            default -> throw new IllegalStateException("Unknown ledger record type " + type + ".");
+        }
+    }
+
+    // Returns the bookings queued again for seats, whose state may have changed on the way
+    List<Booking> finish() {
+        int lastPayment = 0;
+        for (Payment payment : payments.values()) {
+            system.paymentManager.addPayment(payment);
+            system.paymentPipeline.remember(payment);
+            lastPayment = Math.max(lastPayment, payment.id);
+        }
+        Payment.reserveIds(lastPayment);
+        List<Booking> requeued = new ArrayList<>();
+        int lastBooking = 0;
+        for (Booking booking : bookings.values()) {
+            lastBooking = booking.id;
+            for (int paymentId : bookingPayments.getOrDefault(booking.id, new int[0])) {
+                booking.addPayment(payments.get(paymentId));
+            }
+            system.bookingManager.addBooking(booking);
+            if (seated.contains(booking.id)) {
+                int[] indices = new int[booking.flyers.size()];
+                for (int i = 0; i < indices.length; i++) {
+                    Seat seat = booking.flyers.get(i).seat;
+                    indices[i] = seat == null ? -1 : booking.schedule.seatBookings.seatMap.indexOf(seat);
+                }
+                if (Arrays.stream(indices).anyMatch(index -> index < 0) || !booking.schedule.seatBookings.tryReserve(indices)) {
+                    throw new IllegalStateException("Recovered booking " + booking.id + " overlaps another booking.");
+                }
+                booking.reservedSeats = indices;
+            } else if (booking.status == BookingStatus.CONFIRMED || booking.status == BookingStatus.WAITLISTED) {
+                booking.status = BookingStatus.CONFIRMED;
+                system.waitlistEngine.unseated(booking);
+                requeued.add(booking);
+            }
+        }
+        Booking.reserveIds(lastBooking);
+        return requeued;
+    }
 }
 
 class MakeMyTrip {
+    // Bounds the threads stuck on slow airlines; cancelled queries are interrupted and free theirs
+    private static final int FARE_SEARCH_THREADS = 16;
     AirlineManager airlineManager;
     FlightManager flightManager;
     AirportManager airportManager;
     BookingManager bookingManager;
     PaymentManager paymentManager;
+    WaitlistEngine waitlistEngine;
+    FareSearchExecutor fareSearch;
+    PaymentPipeline paymentPipeline;
 
     public MakeMyTrip() {
         airlineManager = new AirlineManager();
@@ -368,6 +2337,41 @@ class MakeMyTrip {
         airportManager = new AirportManager();
         bookingManager = new BookingManager();
         paymentManager = new PaymentManager();
+        paymentPipeline = new PaymentPipeline(paymentManager, 100_000);
+        waitlistEngine = new WaitlistEngine();
+        fareSearch = new FareSearchExecutor(Executors.newFixedThreadPool(FARE_SEARCH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "fare-search");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    // Flights and their schedules must be registered first; bookings are rebuilt onto them
+    void openLedger(Path directory, int segmentSize) throws IOException {
+        BookingLedger ledger = new BookingLedger(directory, segmentSize);
+        LedgerReplay replay = new LedgerReplay(this);
+        ledger.replay(replay);
+        List<Booking> requeued = replay.finish();
+        bookingManager.ledger = ledger;
+        paymentManager.ledger = ledger;
+        for (Booking booking : requeued) {
+            booking.recordState();
+        }
+    }
+
+    void closeLedger() throws IOException {
+        if (bookingManager.ledger != null) bookingManager.ledger.close();
+        bookingManager.ledger = null;
+        paymentManager.ledger = null;
+    }
+
+    List<BigDecimal> fareCalendar(Airport source, Airport destination, SeatType type, LocalDate from, int days) {
+        return flightManager.fareCalendar.calendar(source, destination, type, from, days);
+    }
+
+    FareSearchResult searchFares(Airport source, Airport destination, LocalDate date, SeatType type, Duration deadline,
+                                 Consumer<List<FareOffer>> partial) {
+        return fareSearch.search(airlineManager.airlines.values(), source, destination, date, type, deadline, partial);
     }
 
 
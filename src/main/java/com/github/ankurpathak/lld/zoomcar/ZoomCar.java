@@ -8,10 +8,21 @@ import java.math.BigInteger;
 import java.time.*;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 class User {
     private static int idCounter = 0;
@@ -41,10 +52,13 @@ abstract class Vehicle {
     int id;
     String registration;
     VehicleType vehicleType;
-    VehicleStatus status;
+    // Maintenance is the only status set by hand; BOOKED and AVAILABLE follow the reservations
+    volatile boolean underMaintenance;
     Store store;
     int yearOfManufacture;
-    double kmDriven;
+    // Odometer and position are kept current by the telemetry pipeline
+    volatile double kmDriven;
+    volatile VehiclePosition position;
     BigDecimal securityDeposit = BigDecimal.ZERO;
     BigDecimal hourlyRate = BigDecimal.ZERO;
     int seatingCapacity = 4;
@@ -52,19 +66,24 @@ abstract class Vehicle {
     int cc = 800;
     String model = "Swift";
     String brand = "Suzuki";
+    VehicleReservations reservations = new VehicleReservations();
 
     Vehicle(String registration, Store store, int yearOfManufacture, double kmDriven, BigDecimal securityDeposit, BigDecimal hourlyRate) {
         id = ++idCounter;
         this.registration = registration;
         this.store = store;
         vehicleType = VehicleType.CAR;
-        status = VehicleStatus.AVAILABLE;
         this.yearOfManufacture = yearOfManufacture;
         this.kmDriven = kmDriven;
         this.securityDeposit = securityDeposit;
         this.hourlyRate = hourlyRate;
 
     }
+
+    VehicleStatus status() {
+        if (underMaintenance) return VehicleStatus.UNDER_MAINTENANCE;
+        return reservations.isInUse(Instant.now()) ? VehicleStatus.BOOKED : VehicleStatus.AVAILABLE;
+    }
 }
 
 class Car extends Vehicle {
@@ -84,6 +103,8 @@ class Location {
     String state;
     String country;
     String pinCode;
+    double latitude = Double.NaN;
+    double longitude = Double.NaN;
 
     Location(String city, String state, String country, String pinCode) {
         id = ++idCounter;
@@ -92,6 +113,25 @@ class Location {
         this.country = country;
         this.pinCode = pinCode;
     }
+
+    Location(String city, String state, String country, String pinCode, double latitude, double longitude) {
+        this(city, state, country, pinCode);
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    boolean hasCoordinates() {
+        return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+
+    // Great-circle distance in km
+    static double distanceKm(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.pow(Math.sin(dLatitude / 2), 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * Math.pow(Math.sin(dLongitude / 2), 2);
+        return 2 * StoreGrid.EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
 }
 
 class Store {
@@ -109,37 +149,181 @@ class Store {
     }
 }
 
+record NearbyStore(Store store, double distanceKm, List<Vehicle> vehicles) {
+}
+
+// Stores bucketed into a grid of CELL_DEGREES cells by coordinates, so a radius search
+// only looks at the cells overlapping the circle's bounding box instead of every store.
+// Cells are about 5.5 km tall; stores without coordinates are not indexed.
+class StoreGrid {
+    static final double EARTH_RADIUS_KM = 6371.0088;
+    static final double CELL_DEGREES = 0.05;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+    private final Map<Long, List<Store>> cells = new HashMap<>();
+
+    private static int cell(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long key(int latitudeCell, int longitudeCell) {
+        return ((long) latitudeCell << 32) | (longitudeCell & 0xffffffffL);
+    }
+
+    void add(Store store) {
+        if (!store.location.hasCoordinates()) return;
+        cells.computeIfAbsent(key(cell(store.location.latitude), cell(store.location.longitude)), key -> new ArrayList<>()).add(store);
+    }
+
+    void remove(Store store) {
+        if (!store.location.hasCoordinates()) return;
+        long key = key(cell(store.location.latitude), cell(store.location.longitude));
+        List<Store> cell = cells.get(key);
+        if (cell != null && cell.remove(store) && cell.isEmpty()) cells.remove(key);
+    }
+
+    // Stores within radiusKm, nearest first. Does not wrap around the antimeridian.
+    List<NearbyStore> within(double latitude, double longitude, double radiusKm) {
+        double latitudeDelta = radiusKm / KM_PER_DEGREE;
+        double longitudeDelta = Math.min(180, radiusKm / (KM_PER_DEGREE * Math.max(Math.cos(Math.toRadians(latitude)), 1e-6)));
+        List<NearbyStore> nearby = new ArrayList<>();
+        for (int latitudeCell = cell(latitude - latitudeDelta); latitudeCell <= cell(latitude + latitudeDelta); latitudeCell++) {
+            for (int longitudeCell = cell(longitude - longitudeDelta); longitudeCell <= cell(longitude + longitudeDelta); longitudeCell++) {
+                for (Store store : cells.getOrDefault(key(latitudeCell, longitudeCell), List.of())) {
+                    double distance = Location.distanceKm(latitude, longitude, store.location.latitude, store.location.longitude);
+                    if (distance <= radiusKm) nearby.add(new NearbyStore(store, distance, List.of()));
+                }
+            }
+        }
+        nearby.sort(Comparator.comparingDouble(NearbyStore::distanceKm));
+        return nearby;
+    }
+}
+
 class StoreManager {
     Map<Integer, Store> stores = new HashMap<>();
+    StoreGrid grid = new StoreGrid();
 
     void addStore(Store store) {
         stores.put(store.id, store);
+        grid.add(store);
     }
 
     void removeStore(Store store) {
         stores.remove(store.id);
+        grid.remove(store);
+    }
+
+    List<NearbyStore> nearbyStores(double latitude, double longitude, double radiusKm) {
+        return grid.within(latitude, longitude, radiusKm);
     }
 }
 
-class VehicleManager {
-    Map<Integer, Vehicle> vehicles = new HashMap<>();
-    Map<Store, List<Vehicle>> storeVehicles = new HashMap<>();
+// A vehicle's reservations as non-overlapping [booking, bookingTill) windows ordered by
+// start. A window is free when the last reservation starting before its end has finished
+// by its start, so a check is one floor lookup however many reservations the car has.
+// Its lock is the vehicle's: checking and claiming a window, picking the car up and handing
+// it back happen under it, so of two users booking the same car exactly one wins, while
+// bookings of other cars never wait on each other. The vehicle is in use while a renter has
+// it out, even past their window, or while a reservation covers the current instant.
+class VehicleReservations {
+    private final TreeMap<Instant, Booking> byStart = new TreeMap<>();
+    // The booking that has the car out, from pickup until drop
+    private Booking pickedUp;
+
+    synchronized boolean isFree(Instant from, Instant till) {
+        Map.Entry<Instant, Booking> before = byStart.lowerEntry(till);
+        return before == null || !before.getValue().bookingTill.isAfter(from);
+    }
 
-    void addVehicle(Vehicle vehicle) {
+    synchronized boolean isInUse(Instant at) {
+        if (pickedUp != null) return true;
+        Map.Entry<Instant, Booking> current = byStart.floorEntry(at);
+        return current != null && current.getValue().bookingTill.isAfter(at);
+    }
+
+    // A booking starting now also needs the car back from any renter running late
+    synchronized boolean reserve(Booking booking, boolean startsNow) {
+        if (booking.vehicle.underMaintenance || (startsNow && pickedUp != null)) return false;
+        if (!isFree(booking.booking, booking.bookingTill)) return false;
+        byStart.put(booking.booking, booking);
+        return true;
+    }
+
+    synchronized boolean pickUp(Booking booking) {
+        if (booking.vehicle.underMaintenance || (pickedUp != null && pickedUp != booking)) return false;
+        pickedUp = booking;
+        return true;
+    }
+
+    // Frees the window, and the vehicle too if this booking had it out
+    synchronized void release(Booking booking) {
+        byStart.remove(booking.booking, booking);
+        if (pickedUp == booking) pickedUp = null;
+    }
+
+    synchronized List<Booking> between(Instant from, Instant till) {
+        List<Booking> overlapping = new ArrayList<>();
+        Instant start = byStart.floorKey(from);
+        for (Booking booking : byStart.subMap(start == null ? from : start, true, till, false).values()) {
+            if (booking.bookingTill.isAfter(from)) overlapping.add(booking);
+        }
+        return overlapping;
+    }
+}
+
+class VehicleManager {
+    Map<Integer, Vehicle> vehicles = new ConcurrentHashMap<>();
+    // Copy-on-write: the fleet changes rarely and is read by every availability search
+    Map<Store, List<Vehicle>> storeVehicles = new ConcurrentHashMap<>();
+    // A bit per registered vehicle id, so telemetry checks an id without boxing it or a map
+    // lookup. Changed only under the manager's lock; replaced by a larger copy as ids grow.
+    private volatile AtomicLongArray registeredIds = new AtomicLongArray(16);
+
+    synchronized void addVehicle(Vehicle vehicle) {
         vehicles.put(vehicle.id, vehicle);
-        storeVehicles.putIfAbsent(vehicle.store, new ArrayList<>());
-        storeVehicles.get(vehicle.store).add(vehicle);
+        storeVehicles.computeIfAbsent(vehicle.store, store -> new CopyOnWriteArrayList<>()).add(vehicle);
+        AtomicLongArray ids = registeredIds;
+        int word = vehicle.id >>> 6;
+        if (word >= ids.length()) {
+            AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, 2 * ids.length()));
+            for (int i = 0; i < ids.length(); i++) {
+                grown.set(i, ids.get(i));
+            }
+            registeredIds = ids = grown;
+        }
+        ids.set(word, ids.get(word) | (1L << vehicle.id));
+    }
+
+    synchronized void removeVehicle(Vehicle vehicle) {
+        if (vehicles.remove(vehicle.id) != null) {
+            AtomicLongArray ids = registeredIds;
+            int word = vehicle.id >>> 6;
+            ids.set(word, ids.get(word) & ~(1L << vehicle.id));
+        }
+        List<Vehicle> vehicles = storeVehicles.get(vehicle.store);
+        if (vehicles != null) vehicles.remove(vehicle);
     }
 
-    void removeVehicle(Vehicle vehicle) {
-        vehicles.remove(vehicle.id);
-        storeVehicles.putIfAbsent(vehicle.store, new ArrayList<>());
-        storeVehicles.get(vehicle.store).remove(vehicle);
+    boolean isRegistered(int vehicleId) {
+        AtomicLongArray ids = registeredIds;
+        int word = vehicleId >>> 6;
+        return word < ids.length() && (ids.get(word) & (1L << vehicleId)) != 0;
+    }
+
+    // Vehicles of the store not in maintenance and without a reservation overlapping [from, till)
+    List<Vehicle> availableVehicles(Store store, Instant from, Instant till) {
+        List<Vehicle> available = new ArrayList<>();
+        for (Vehicle vehicle : storeVehicles.getOrDefault(store, List.of())) {
+            if (!vehicle.underMaintenance && vehicle.reservations.isFree(from, till)) {
+                available.add(vehicle);
+            }
+        }
+        return available;
     }
 }
 
 class Booking {
-    private static int idCounter = 0;
+    private static final AtomicInteger idCounter = new AtomicInteger();
     int id;
     Vehicle vehicle;
     User user;
@@ -156,13 +340,20 @@ class Booking {
     PaymentManager paymentManager;
 
     Booking(Vehicle vehicle, User user, Store store, int bookingForDays, PaymentManager paymentManager) {
-        id = ++idCounter;
+        this(vehicle, user, store, Instant.now(), bookingForDays, paymentManager);
+    }
+
+    Booking(Vehicle vehicle, User user, Store store, Instant from, int bookingForDays, PaymentManager paymentManager) {
+        this(vehicle, user, store, from, from.plus(bookingForDays, ChronoUnit.DAYS), paymentManager);
+    }
+
+    Booking(Vehicle vehicle, User user, Store store, Instant from, Instant till, PaymentManager paymentManager) {
+        id = idCounter.incrementAndGet();
         this.vehicle = vehicle;
-        this.vehicle.status = VehicleStatus.BOOKED;
         this.user = user;
         this.store = store;
-        booking = Instant.now();
-        bookingTill = booking.plus(bookingForDays, ChronoUnit.DAYS);
+        booking = from;
+        bookingTill = till;
         pickupLocation = store.location;
         dropLocation = store.location;
         this.paymentManager = paymentManager;
@@ -186,33 +377,46 @@ class Booking {
 
 
 
-    void addPayment(Payment payment) {
+    synchronized void addPayment(Payment payment) {
         paidAmount = paidAmount.add(payment.amount);
         payments.add(payment);
     }
 
-    void removePayment(Payment payment) {
+    synchronized void removePayment(Payment payment) {
         payments.remove(payment);
     }
 
 
-    void processPickup() {
-        if (status == BookingStatus.RESERVED && paidAmount.compareTo(computeBookingAmount()) >= 0){
+    synchronized void processPickup() {
+        if (status == BookingStatus.RESERVED && paidAmount.compareTo(computeBookingAmount()) >= 0 && !Instant.now().isBefore(booking)
+                && vehicle.reservations.pickUp(this)){
             status = BookingStatus.IN_PROGRESS;
             pickup = Instant.now();
         }
 
     }
 
-    void processDrop() {
+    synchronized void processDrop() {
         if (status == BookingStatus.IN_PROGRESS &&  paidAmount.compareTo(billedAmount()) >= 0){
             status = BookingStatus.COMPLETED;
-            vehicle.status = VehicleStatus.AVAILABLE;
+            vehicle.reservations.release(this);
             drop = Instant.now();
             Payment payment = paymentManager.createPayment(store, BigDecimal.valueOf(-1).multiply(computeRefund()), PaymentStatus.SUCCESS);
             addPayment(payment);
         }
     }
+
+    // Only before pickup; whatever was paid is refunded
+    synchronized void cancel() {
+        if (status == BookingStatus.RESERVED) {
+            status = BookingStatus.CANCELLED;
+            vehicle.reservations.release(this);
+            if (paidAmount.signum() > 0) {
+                Payment payment = paymentManager.createPayment(store, paidAmount.negate(), PaymentStatus.SUCCESS);
+                addPayment(payment);
+            }
+        }
+    }
 }
 
 
@@ -221,13 +425,13 @@ class Booking {
 
 @ToString
 class Payment {
-    private static int idCounter = 0;
+    private static final AtomicInteger idCounter = new AtomicInteger();
     int id;
     BigDecimal amount = BigDecimal.ZERO;
     PaymentStatus status = PaymentStatus.PENDING;
     Store store;
     Payment(Store store, BigDecimal amount, PaymentStatus status) {
-        id = ++idCounter;
+        id = idCounter.incrementAndGet();
         this.store = store;
         this.amount = amount;
         this.status = status;
@@ -239,10 +443,10 @@ enum PaymentStatus {
 }
 
 class BookingManager {
-    Map<Integer, Booking> bookings = new HashMap<>();
-    Map<Store, List<Booking>> storeBookings = new HashMap<>();
-    Map<Integer, Payment> payments = new HashMap<>();
-    Map<Store, List<Payment>> storePayments = new HashMap<>();
+    Map<Integer, Booking> bookings = new ConcurrentHashMap<>();
+    Map<Store, Set<Booking>> storeBookings = new ConcurrentHashMap<>();
+    Map<Integer, Payment> payments = new ConcurrentHashMap<>();
+    Map<Store, Set<Payment>> storePayments = new ConcurrentHashMap<>();
     PaymentManager paymentManager;
 
     BookingManager(PaymentManager paymentManager) {
@@ -252,21 +456,31 @@ class BookingManager {
 
     void addBooking(Booking booking) {
         bookings.put(booking.id, booking);
-        storeBookings.putIfAbsent(booking.store, new ArrayList<>());
-        storeBookings.get(booking.store).add(booking);
+        storeBookings.computeIfAbsent(booking.store, store -> ConcurrentHashMap.newKeySet()).add(booking);
     }
 
     void removeBooking(Booking booking) {
         bookings.remove(booking.id);
-        storeBookings.putIfAbsent(booking.store, new ArrayList<>());
-        storeBookings.get(booking.store).remove(booking);
+        Set<Booking> bookings = storeBookings.get(booking.store);
+        if (bookings != null) bookings.remove(booking);
     }
 
     Booking createBooking(Vehicle vehicle, User user, Store store, int bookingForDays) {
-        if (vehicle.status != VehicleStatus.AVAILABLE) {
+        return reserve(new Booking(vehicle, user, store, bookingForDays, paymentManager), true);
+    }
+
+    // Future-dated reservation of [from, till); the vehicle only has to be free in that window
+    Booking createBooking(Vehicle vehicle, User user, Store store, Instant from, Instant till) {
+        if (!till.isAfter(from)) {
+            throw new IllegalArgumentException("Booking must end after it starts.");
+        }
+        return reserve(new Booking(vehicle, user, store, from, till, paymentManager), false);
+    }
+
+    private Booking reserve(Booking booking, boolean startsNow) {
+        if (!booking.vehicle.reservations.reserve(booking, startsNow)) {
             throw new IllegalStateException("Vehicle not available for booking.");
         }
-        Booking booking = new Booking(vehicle, user, store, bookingForDays, paymentManager);
         addBooking(booking);
         return booking;
     }
@@ -274,19 +488,18 @@ class BookingManager {
 }
 
 class PaymentManager {
-    Map<Integer, Payment> payments = new HashMap<>();
-    Map<Store, List<Payment>> storePayments = new HashMap<>();
+    Map<Integer, Payment> payments = new ConcurrentHashMap<>();
+    Map<Store, Set<Payment>> storePayments = new ConcurrentHashMap<>();
 
     void addPayment(Payment payment) {
         payments.put(payment.id, payment);
-        storePayments.putIfAbsent(payment.store, new ArrayList<>());
-        storePayments.get(payment.store).add(payment);
+        storePayments.computeIfAbsent(payment.store, store -> ConcurrentHashMap.newKeySet()).add(payment);
     }
 
     void removePayment(Payment payment) {
         payments.remove(payment.id);
-        storePayments.putIfAbsent(payment.store, new ArrayList<>());
-        storePayments.get(payment.store).remove(payment);
+        Set<Payment> payments = storePayments.get(payment.store);
+        if (payments != null) payments.remove(payment);
     }
 
     Payment createPayment(Store store, BigDecimal amount, PaymentStatus status){
@@ -312,12 +525,230 @@ enum VehicleType {
     CAR
 }
 
+record VehiclePosition(double latitude, double longitude, float fuelPercent, Instant at) {
+}
+
+// Bounded multi-producer ring of pings stored column-wise in primitive arrays, so a ping
+// allocates nothing. A producer claims a sequence by CAS on head and publishes its slot by
+// writing the sequence into `published`; the single consumer reads slots in order up to the
+// first unpublished one. A full ring rejects the ping instead of growing.
+class TelemetryRing {
+    private final int mask;
+    private final int[] vehicleIds;
+    private final long[] timestamps;
+    private final double[] odometers;
+    private final float[] fuel;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    interface PingConsumer {
+        void accept(int vehicleId, long timestamp, double odometerKm, float fuelPercent, double latitude, double longitude);
+    }
+
+    TelemetryRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Ring capacity must be a power of two.");
+        mask = capacity - 1;
+        vehicleIds = new int[capacity];
+        timestamps = new long[capacity];
+        odometers = new double[capacity];
+        fuel = new float[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            published.set(slot, -1);
+        }
+    }
+
+    boolean offer(int vehicleId, long timestamp, double odometerKm, float fuelPercent, double latitude, double longitude) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail > mask) return false;
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        vehicleIds[slot] = vehicleId;
+        timestamps[slot] = timestamp;
+        odometers[slot] = odometerKm;
+        fuel[slot] = fuelPercent;
+        latitudes[slot] = latitude;
+        longitudes[slot] = longitude;
+        published.lazySet(slot, sequence);
+        return true;
+    }
+
+    // Single consumer only; returns how many pings were handed over. A ping the consumer
+    // throws on is still consumed, so it cannot wedge the ring.
+    int drain(PingConsumer consumer, int max) {
+        long next = tail;
+        int drained = 0;
+        try {
+            while (drained < max) {
+                int slot = (int) next & mask;
+                if (published.get(slot) != next) break;
+                next++;
+                drained++;
+                consumer.accept(vehicleIds[slot], timestamps[slot], odometers[slot], fuel[slot], latitudes[slot], longitudes[slot]);
+            }
+        } finally {
+            tail = next;
+        }
+        return drained;
+    }
+}
+
+// Ingests odometer, fuel and GPS pings from the fleet. Producers only write into the ring;
+// one thread drains it in batches, folding pings into per-vehicle primitive arrays indexed
+// by vehicle id, and writes each touched Vehicle once per batch. Pings older than the
+// vehicle's latest are ignored, and the odometer never runs backwards. Memory is the ring
+// plus a few numbers per vehicle, whatever the ping rate. Pings for ids that are not
+// registered vehicles are rejected at publish, since the per-vehicle arrays grow to the
+// largest id seen.
+class TelemetryPipeline {
+    private static final System.Logger LOG = System.getLogger(TelemetryPipeline.class.getName());
+    static final int BATCH = 4096;
+    private static final int MAX_VEHICLE_ID = 1 << 24;
+    private final VehicleManager vehicleManager;
+    private final TelemetryRing ring;
+    final LongAdder received = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder stale = new LongAdder();
+    // Owned by the ingestion thread
+    private long[] lastTimestamps = new long[1024];
+    private double[] odometers = new double[1024];
+    private float[] fuel = new float[1024];
+    private double[] latitudes = new double[1024];
+    private double[] longitudes = new double[1024];
+    private boolean[] dirty = new boolean[1024];
+    private int[] touched = new int[BATCH];
+    private int touchedCount;
+    private volatile boolean running;
+    private Thread thread;
+
+    TelemetryPipeline(VehicleManager vehicleManager, int ringCapacity) {
+        this.vehicleManager = vehicleManager;
+        this.ring = new TelemetryRing(ringCapacity);
+        Arrays.fill(lastTimestamps, Long.MIN_VALUE);
+    }
+
+    // False when the ping was rejected or the ring is full and it was dropped
+    boolean publish(int vehicleId, long timestamp, double odometerKm, float fuelPercent, double latitude, double longitude) {
+        if (vehicleId < 0 || vehicleId > MAX_VEHICLE_ID || !vehicleManager.isRegistered(vehicleId)) {
+            rejected.increment();
+            return false;
+        }
+        if (ring.offer(vehicleId, timestamp, odometerKm, fuelPercent, latitude, longitude)) {
+            received.increment();
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::run, "telemetry-ingest");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) thread.join();
+        thread = null;
+    }
+
+    // A failing batch is logged and skipped; ingestion keeps running
+    private void run() {
+        while (running) {
+            try {
+                if (drainBatch() == 0) LockSupport.parkNanos(100_000);
+            } catch (RuntimeException e) {
+                LOG.log(System.Logger.Level.ERROR, "Telemetry batch failed; skipping it.", e);
+            }
+        }
+        while (true) {
+            try {
+                if (drainBatch() == 0) break;
+            } catch (RuntimeException e) {
+                LOG.log(System.Logger.Level.ERROR, "Telemetry batch failed; skipping it.", e);
+            }
+        }
+    }
+
+    int drainBatch() {
+        int drained = ring.drain(this::fold, BATCH);
+        for (int i = 0; i < touchedCount; i++) {
+            int vehicleId = touched[i];
+            dirty[vehicleId] = false;
+            Vehicle vehicle = vehicleManager.vehicles.get(vehicleId);
+            if (vehicle == null) continue;
+            if (odometers[vehicleId] > vehicle.kmDriven) vehicle.kmDriven = odometers[vehicleId];
+            vehicle.position = new VehiclePosition(latitudes[vehicleId], longitudes[vehicleId], fuel[vehicleId],
+                    Instant.ofEpochMilli(lastTimestamps[vehicleId]));
+        }
+        touchedCount = 0;
+        return drained;
+    }
+
+    private void fold(int vehicleId, long timestamp, double odometerKm, float fuelPercent, double latitude, double longitude) {
+        if (vehicleId < 0 || vehicleId > MAX_VEHICLE_ID) return;
+        if (vehicleId >= lastTimestamps.length) grow(vehicleId);
+        if (timestamp < lastTimestamps[vehicleId]) {
+            stale.increment();
+            return;
+        }
+        lastTimestamps[vehicleId] = timestamp;
+        odometers[vehicleId] = Math.max(odometers[vehicleId], odometerKm);
+        fuel[vehicleId] = fuelPercent;
+        latitudes[vehicleId] = latitude;
+        longitudes[vehicleId] = longitude;
+        if (!dirty[vehicleId]) {
+            dirty[vehicleId] = true;
+            if (touchedCount == touched.length) touched = Arrays.copyOf(touched, touchedCount * 2);
+            touched[touchedCount++] = vehicleId;
+        }
+    }
+
+    private void grow(int vehicleId) {
+        int length = Math.max(lastTimestamps.length * 2, vehicleId + 1);
+        int previous = lastTimestamps.length;
+        lastTimestamps = Arrays.copyOf(lastTimestamps, length);
+        Arrays.fill(lastTimestamps, previous, length, Long.MIN_VALUE);
+        odometers = Arrays.copyOf(odometers, length);
+        fuel = Arrays.copyOf(fuel, length);
+        latitudes = Arrays.copyOf(latitudes, length);
+        longitudes = Arrays.copyOf(longitudes, length);
+        dirty = Arrays.copyOf(dirty, length);
+    }
+}
+
 class ZoomCar {
     UserManager userManager = new UserManager();
     VehicleManager vehicleManager = new VehicleManager();
     PaymentManager paymentManager = new PaymentManager();
     BookingManager bookingManager = new BookingManager(paymentManager);
     StoreManager storeManager = new StoreManager();
+    TelemetryPipeline telemetry = new TelemetryPipeline(vehicleManager, 1 << 16);
+
+    // Stores within radiusKm, nearest first, with their cars of the type free for [from, till);
+    // stores with none are left out
+    List<NearbyStore> findVehicles(double latitude, double longitude, double radiusKm, CarType carType, Instant from, Instant till) {
+        List<NearbyStore> result = new ArrayList<>();
+        for (NearbyStore nearby : storeManager.nearbyStores(latitude, longitude, radiusKm)) {
+            List<Vehicle> vehicles = new ArrayList<>();
+            for (Vehicle vehicle : vehicleManager.availableVehicles(nearby.store(), from, till)) {
+                if (vehicle instanceof Car car && car.carType == carType) vehicles.add(vehicle);
+            }
+            if (!vehicles.isEmpty()) result.add(new NearbyStore(nearby.store(), nearby.distanceKm(), vehicles));
+        }
+        return result;
+    }
 
     public static void main(String[] args) throws Exception {
         ZoomCar zoomCar = new ZoomCar();
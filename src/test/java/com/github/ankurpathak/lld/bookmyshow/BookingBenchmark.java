@@ -0,0 +1,155 @@
+package com.github.ankurpathak.lld.bookmyshow;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Booking hot path on a 480-seat IMAX-sized screen. Throughput gives ops/s, SampleTime the
+// latency percentiles (p99 included) and the gc profiler the allocation rate per op.
+//
+// mvn test-compile exec:java -Dexec.classpathScope=test \
+//     -Dexec.mainClass=com.github.ankurpathak.lld.bookmyshow.BookingBenchmark
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BookingBenchmark {
+    static final int ROWS = 20;
+    static final int COLS = 24;
+    static final int GROUP_SIZE = 4;
+
+    @State(Scope.Benchmark)
+    public static class ShowState {
+        TheaterManager theaterManager;
+        Movie movie;
+        Show show;
+        User user;
+        Booking booking;
+        BigDecimal amount;
+        List<List<Seat>> blocks = new ArrayList<>();
+
+        @Setup
+        public void setup() {
+            theaterManager = new TheaterManager();
+            movie = new Movie("Interstellar", Duration.ofMinutes(169));
+            user = new User("Benchmark");
+            for (City city : City.values()) {
+                for (int t = 0; t < 50; t++) {
+                    Theater theater = new Theater("Theater " + t, city);
+                    Screen screen = imaxScreen();
+                    theater.addScreen(screen);
+                    for (int s = 0; s < 4; s++) {
+                        Show candidate = new Show(movie, screen, LocalDate.now(), LocalTime.of(10 + 3 * s, 0), movie.duration);
+                        price(candidate);
+                        theater.addShow(candidate);
+                        if (show == null) show = candidate;
+                    }
+                    theaterManager.addTheater(theater);
+                }
+            }
+            for (int row = 1; row <= ROWS; row++) {
+                for (int col = 1; col + GROUP_SIZE - 1 <= COLS; col += GROUP_SIZE) {
+                    List<Seat> block = new ArrayList<>();
+                    for (int i = 0; i < GROUP_SIZE; i++) {
+                        block.add(show.screen.seats.get(identifier(row, col + i)));
+                    }
+                    blocks.add(block);
+                }
+            }
+            booking = new Booking(show, blocks.get(blocks.size() / 2), user);
+            amount = booking.computeAmount();
+        }
+
+        static Screen imaxScreen() {
+            Screen screen = new Screen("IMAX");
+            for (int row = 1; row <= ROWS; row++) {
+                SeatType type = row <= 12 ? SeatType.REGULAR : row <= 18 ? SeatType.PREMIUM : SeatType.LUXURY;
+                for (int col = 1; col <= COLS; col++) {
+                    screen.addSeat(new Seat(identifier(row, col), row, col, type));
+                }
+            }
+            return screen;
+        }
+
+        static void price(Show show) {
+            show.addSeatCost(SeatType.REGULAR, BigDecimal.valueOf(250));
+            show.addSeatCost(SeatType.PREMIUM, BigDecimal.valueOf(450));
+            show.addSeatCost(SeatType.LUXURY, BigDecimal.valueOf(900));
+        }
+
+        static String identifier(int row, int col) {
+            return (char) ('A' + row - 1) + String.valueOf(col);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        SplittableRandom random = new SplittableRandom();
+    }
+
+    @Benchmark
+    public boolean areSeatsAvailable(ShowState state) {
+        return state.booking.areSeatsAvailable();
+    }
+
+    @Benchmark
+    public BigDecimal computeAmount(ShowState state) {
+        return state.booking.computeAmount();
+    }
+
+    @Benchmark
+    public long computeAmountMinorUnits(ShowState state) {
+        return state.booking.computeAmountMinorUnits();
+    }
+
+    @Benchmark
+    public List<Show> findShows(ShowState state) {
+        return state.theaterManager.findShows(City.PUNE, state.movie, LocalDate.now(), SeatType.PREMIUM, GROUP_SIZE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public BookingStatus assignPayment(ShowState state, ThreadState thread) {
+        return bookAndCancel(state, thread);
+    }
+
+    // Every thread books and cancels random blocks of the same show
+    @Benchmark
+    @Threads(Threads.MAX)
+    public BookingStatus assignPaymentContended(ShowState state, ThreadState thread) {
+        return bookAndCancel(state, thread);
+    }
+
+    private static BookingStatus bookAndCancel(ShowState state, ThreadState thread) {
+        List<Seat> block = state.blocks.get(thread.random.nextInt(state.blocks.size()));
+        Booking booking = new Booking(state.show, block, state.user);
+        booking.assignPayment(new Payment(state.amount, PaymentStatus.SUCCESS));
+        BookingStatus status = booking.status;
+        booking.cancel();
+        return status;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(BookingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-booking.json")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.ankurpathak.lld.makemytrip;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BookingLedgerTest {
+    private static final Aircraft AIRCRAFT = new Aircraft("t", "m", "b");
+    private static final LocalDateTime DEPARTURE = LocalDateTime.of(2026, 3, 1, 6, 0);
+
+    @TempDir
+    Path directory;
+
+    static {
+        for (int i = 0; i < 3; i++) {
+            AIRCRAFT.addSeat(new Seat("A" + i, 1, i, SeatType.ECONOMY, EnumSet.noneOf(SeatFeature.class)));
+        }
+    }
+
+    private static Schedule schedule(MakeMyTrip makeMyTrip, String flightNumber) {
+        Flight flight = new Flight(new Airline("x"), AIRCRAFT, flightNumber, new Airport("A", "a"), new Airport("B", "b"), Duration.ofHours(1), 1);
+        Schedule schedule = new Schedule(flight, DEPARTURE, DEPARTURE.plusHours(2), new HashSet<>());
+        schedule.setSeatPrice(SeatType.ECONOMY, BigDecimal.TEN);
+        flight.addSchedule(schedule);
+        makeMyTrip.flightManager.addFlight(flight);
+        return schedule;
+    }
+
+    private static Booking book(MakeMyTrip makeMyTrip, Schedule schedule, String key) {
+        Booking booking = new Booking(schedule.flight, schedule, List.of(new Flyer(key, "c", "e")), SeatType.ECONOMY, makeMyTrip);
+        makeMyTrip.bookingManager.addBooking(booking);
+        makeMyTrip.paymentPipeline.pay(key, booking, BigDecimal.TEN, PaymentStatus.SUCCESS);
+        return booking;
+    }
+
+    // Flight and schedule ids come from counters, so a restart hands out different ones; the
+    // ledger must find bookings' schedules by flight number and departure instead
+    @Test
+    void bookingsComeBackOnSchedulesWithDifferentIds() throws Exception {
+        MakeMyTrip before = new MakeMyTrip();
+        Schedule original = schedule(before, "F1");
+        before.openLedger(directory, 4096);
+        Booking cancelled = book(before, original, "k1");
+        Booking confirmed = book(before, original, "k2");
+        cancelled.cancelBooking();
+        String seat = confirmed.flyers.get(0).seat.identifier;
+        before.closeLedger();
+
+        MakeMyTrip after = new MakeMyTrip();
+        schedule(after, "F9");
+        Schedule reopened = schedule(after, "F1");
+        assertTrue(reopened.id != original.id && reopened.flight.id != original.flight.id);
+        after.openLedger(directory, 4096);
+
+        Booking recovered = after.bookingManager.bookings.get(confirmed.id);
+        assertSame(reopened, recovered.schedule);
+        assertEquals(BookingStatus.CONFIRMED, recovered.status);
+        assertEquals(seat, recovered.flyers.get(0).seat.identifier);
+        assertEquals(BookingStatus.CANCELLED, after.bookingManager.bookings.get(cancelled.id).status);
+        assertEquals(2, reopened.seatBookings.availableCount(SeatType.ECONOMY));
+        assertTrue(after.paymentPipeline.settle(after.bookingManager.bookings.values()).isEmpty());
+        after.closeLedger();
+    }
+
+    // A booking paid without being registered leaves no record to replay
+    @Test
+    void unregisteredBookingsAreNotJournaled() throws Exception {
+        MakeMyTrip before = new MakeMyTrip();
+        Schedule original = schedule(before, "F1");
+        before.openLedger(directory, 4096);
+        Booking orphan = new Booking(original.flight, original, List.of(new Flyer("o", "c", "e")), SeatType.ECONOMY, before);
+        before.paymentPipeline.pay("o", orphan, BigDecimal.TEN, PaymentStatus.SUCCESS);
+        Booking registered = book(before, original, "k");
+        before.closeLedger();
+
+        MakeMyTrip after = new MakeMyTrip();
+        Schedule reopened = schedule(after, "F1");
+        after.openLedger(directory, 4096);
+        assertEquals(List.of(registered.id), List.copyOf(after.bookingManager.bookings.keySet()));
+        assertEquals(BookingStatus.CONFIRMED, after.bookingManager.bookings.get(registered.id).status);
+        assertEquals(2, reopened.seatBookings.availableCount(SeatType.ECONOMY));
+        after.closeLedger();
+    }
+}
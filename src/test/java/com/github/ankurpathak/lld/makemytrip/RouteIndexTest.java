@@ -0,0 +1,109 @@
+package com.github.ankurpathak.lld.makemytrip;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteIndexTest {
+    private static final LocalDate DATE = LocalDate.of(2026, 3, 1);
+    private static final int MAX_STOPS = 2;
+
+    // On random networks the index returns exactly the itineraries no other one beats on
+    // departure, arrival and stops, as found by trying every path
+    @Test
+    void searchMatchesBruteForceParetoFront() {
+        for (long seed = 0; seed < 40; seed++) {
+            Random random = new Random(seed);
+            FlightManager flightManager = new FlightManager();
+            flightManager.maximumLayover = Duration.ofHours(6);
+            Aircraft aircraft = new Aircraft("t", "m", "b");
+            aircraft.addSeat(new Seat("A", 1, 1, SeatType.ECONOMY, EnumSet.noneOf(SeatFeature.class)));
+            Airport[] airports = new Airport[6];
+            for (int i = 0; i < airports.length; i++) {
+                airports[i] = new Airport("P" + i, "p");
+            }
+            List<Flight> flights = new ArrayList<>();
+            for (int k = 0; k < 14; k++) {
+                int from = random.nextInt(airports.length), to = random.nextInt(airports.length);
+                if (from == to) continue;
+                Flight flight = new Flight(new Airline("x"), aircraft, "F" + k, airports[from], airports[to], Duration.ofHours(1), 1);
+                for (int j = 0; j < 4; j++) {
+                    LocalDateTime departure = DATE.atStartOfDay().plusMinutes(random.nextInt(36 * 60));
+                    flight.addSchedule(new Schedule(flight, departure, departure.plusMinutes(60 + random.nextInt(300)), new HashSet<>()));
+                }
+                flightManager.addFlight(flight);
+                flights.add(flight);
+            }
+
+            List<Itinerary> all = new ArrayList<>();
+            Set<Integer> visited = new HashSet<>(Set.of(airports[0].id));
+            paths(flightManager, flights, airports[0], airports[1], MAX_STOPS + 1, new ArrayList<>(), visited, all);
+            assertEquals(keys(paretoFront(all)), keys(flightManager.search(airports[0], airports[1], DATE, MAX_STOPS)), "seed " + seed);
+        }
+    }
+
+    // Every simple path of at most legs flights whose first leg departs on DATE
+    private static void paths(FlightManager flightManager, List<Flight> flights, Airport at, Airport destination, int legs,
+                              List<Schedule> path, Set<Integer> visited, List<Itinerary> found) {
+        if (legs == 0) return;
+        for (Flight flight : flights) {
+            if (flight.source.id != at.id || visited.contains(flight.destination.id)) continue;
+            for (Schedule schedule : flight.schedules.values()) {
+                if (path.isEmpty()) {
+                    if (!schedule.departure.toLocalDate().equals(DATE)) continue;
+                } else {
+                    Schedule previous = path.get(path.size() - 1);
+                    if (schedule.departure.isBefore(previous.arrival.plus(flightManager.defaultConnectionTime))
+                            || schedule.departure.isAfter(previous.arrival.plus(flightManager.maximumLayover))) continue;
+                }
+                path.add(schedule);
+                if (flight.destination.id == destination.id) {
+                    found.add(new Itinerary(new ArrayList<>(path)));
+                } else {
+                    visited.add(flight.destination.id);
+                    paths(flightManager, flights, flight.destination, destination, legs - 1, path, visited, found);
+                    visited.remove(flight.destination.id);
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+    }
+
+    private static List<Itinerary> paretoFront(List<Itinerary> itineraries) {
+        List<Itinerary> front = new ArrayList<>();
+        for (Itinerary candidate : itineraries) {
+            boolean dominated = false;
+            for (Itinerary other : itineraries) {
+                boolean noWorse = !other.departure().isBefore(candidate.departure()) && !other.arrival().isAfter(candidate.arrival())
+                        && other.stops() <= candidate.stops();
+                boolean better = other.departure().isAfter(candidate.departure()) || other.arrival().isBefore(candidate.arrival())
+                        || other.stops() < candidate.stops();
+                if (noWorse && better) {
+                    dominated = true;
+                    break;
+                }
+            }
+            if (!dominated) front.add(candidate);
+        }
+        return front;
+    }
+
+    private static Set<String> keys(List<Itinerary> itineraries) {
+        Set<String> keys = new TreeSet<>();
+        for (Itinerary itinerary : itineraries) {
+            keys.add(itinerary.departure() + "/" + itinerary.arrival() + "/" + itinerary.stops());
+        }
+        return keys;
+    }
+}
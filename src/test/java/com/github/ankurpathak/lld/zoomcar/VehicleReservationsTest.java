@@ -0,0 +1,106 @@
+package com.github.ankurpathak.lld.zoomcar;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VehicleReservationsTest {
+    private final ZoomCar zoomCar = new ZoomCar();
+    private final Store store = new Store(new Location("Pune", "MH", "IN", "411001"), "Camp", "contact");
+
+    private Vehicle car() {
+        Vehicle vehicle = new Car("MH12-0001", store, 2022, 0, BigDecimal.ZERO, BigDecimal.TEN);
+        zoomCar.vehicleManager.addVehicle(vehicle);
+        return vehicle;
+    }
+
+    // Immediate and future bookings race for overlapping windows of one car; one must win
+    @Test
+    void concurrentBookingsOfOneCarHaveOneWinner() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            for (int round = 0; round < 500; round++) {
+                Vehicle vehicle = car();
+                Instant tomorrow = Instant.now().plus(1, ChronoUnit.DAYS);
+                CountDownLatch start = new CountDownLatch(1);
+                AtomicInteger winners = new AtomicInteger();
+                List<Future<?>> attempts = new ArrayList<>();
+                for (int i = 0; i < 16; i++) {
+                    int hours = i;
+                    attempts.add(executor.submit(() -> {
+                        start.await();
+                        try {
+                            if (hours % 2 == 0) {
+                                zoomCar.bookingManager.createBooking(vehicle, new User("u"), store, 1);
+                            } else {
+                                zoomCar.bookingManager.createBooking(vehicle, new User("u"), store, tomorrow.minus(hours, ChronoUnit.HOURS),
+                                        tomorrow.plus(hours, ChronoUnit.HOURS));
+                            }
+                            winners.incrementAndGet();
+                        } catch (IllegalStateException e) {
+                            // Lost the race
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> attempt : attempts) {
+                    attempt.get();
+                }
+                assertEquals(1, winners.get(), "round " + round);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void carStaysBookedWhileALateRenterHasIt() {
+        Vehicle vehicle = car();
+        Instant now = Instant.now();
+        Booking late = new Booking(vehicle, new User("late"), store, now.minus(3, ChronoUnit.HOURS), now.minus(1, ChronoUnit.HOURS),
+                zoomCar.paymentManager);
+        assertTrue(vehicle.reservations.reserve(late, false));
+        assertTrue(vehicle.reservations.pickUp(late));
+        Booking next = zoomCar.bookingManager.createBooking(vehicle, new User("next"), store, now.minus(30, ChronoUnit.MINUTES),
+                now.plus(2, ChronoUnit.HOURS));
+
+        assertFalse(vehicle.reservations.pickUp(next));
+        next.cancel();
+        assertEquals(VehicleStatus.BOOKED, vehicle.status());
+        assertThrows(IllegalStateException.class, () -> zoomCar.bookingManager.createBooking(vehicle, new User("walk-in"), store, 1));
+
+        vehicle.reservations.release(late);
+        assertEquals(VehicleStatus.AVAILABLE, vehicle.status());
+    }
+
+    @Test
+    void statusFollowsTheReservationCoveringNow() {
+        Vehicle vehicle = car();
+        Instant now = Instant.now();
+        Booking later = zoomCar.bookingManager.createBooking(vehicle, new User("later"), store, now.plus(1, ChronoUnit.HOURS),
+                now.plus(2, ChronoUnit.HOURS));
+        assertEquals(VehicleStatus.AVAILABLE, vehicle.status());
+        assertTrue(vehicle.reservations.isInUse(later.booking));
+
+        Booking current = zoomCar.bookingManager.createBooking(vehicle, new User("now"), store, now.minus(1, ChronoUnit.HOURS),
+                now.plus(30, ChronoUnit.MINUTES));
+        assertEquals(VehicleStatus.BOOKED, vehicle.status());
+        current.cancel();
+        assertEquals(VehicleStatus.AVAILABLE, vehicle.status());
+
+        vehicle.underMaintenance = true;
+        assertEquals(VehicleStatus.UNDER_MAINTENANCE, vehicle.status());
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.ankurpathak.lld.zoomcar;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Nearby-vehicle search over 100k stores spread across India, a few of them around Pune
+// with SUVs, and telemetry ingestion for a 10k-car fleet, counted per ping. Throughput gives
+// ops/s, SampleTime the latency percentiles.
+//
+// mvn test-compile exec:java -Dexec.classpathScope=test \
+//     -Dexec.mainClass=com.github.ankurpathak.lld.zoomcar.ZoomCarBenchmark
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZoomCarBenchmark {
+    static final int STORES = 100_000;
+    static final double PUNE_LATITUDE = 18.575;
+    static final double PUNE_LONGITUDE = 73.915;
+
+    @State(Scope.Benchmark)
+    public static class FleetState {
+        ZoomCar zoomCar;
+        Instant from;
+        Instant till;
+
+        @Setup
+        public void setup() {
+            zoomCar = new ZoomCar();
+            SplittableRandom random = new SplittableRandom(1);
+            for (int i = 0; i < STORES; i++) {
+                Location location = new Location("City " + i, "State", "IN", "000000", 8 + random.nextDouble() * 28, 68 + random.nextDouble() * 29);
+                zoomCar.storeManager.addStore(new Store(location, "Store " + i, "contact"));
+            }
+            for (int i = 0; i < 10; i++) {
+                Location location = new Location("Pune", "MH", "IN", "411001", PUNE_LATITUDE + (i - 5) * 0.01, PUNE_LONGITUDE + (i - 5) * 0.01);
+                Store store = new Store(location, "Pune " + i, "contact");
+                zoomCar.storeManager.addStore(store);
+                for (int v = 0; v < 5; v++) {
+                    Car car = new Car("MH12-" + i + "-" + v, store, 2022, 0, BigDecimal.valueOf(5000), BigDecimal.valueOf(300));
+                    car.carType = v % 2 == 0 ? CarType.SUV : CarType.SEDAN;
+                    zoomCar.vehicleManager.addVehicle(car);
+                }
+            }
+            from = Instant.now().plus(1, ChronoUnit.DAYS);
+            till = from.plus(8, ChronoUnit.HOURS);
+        }
+    }
+
+    // The pipeline is not started: the benchmark thread publishes a batch and drains it
+    // itself, as the ingestion thread would
+    @State(Scope.Benchmark)
+    public static class TelemetryState {
+        static final int VEHICLES = 10_000;
+        TelemetryPipeline pipeline;
+        int[] vehicleIds = new int[VEHICLES];
+        long timestamp;
+
+        @Setup
+        public void setup() {
+            ZoomCar zoomCar = new ZoomCar();
+            Store store = new Store(new Location("Pune", "MH", "IN", "411001", PUNE_LATITUDE, PUNE_LONGITUDE), "Pune", "contact");
+            for (int i = 0; i < VEHICLES; i++) {
+                Car car = new Car("MH14-" + i, store, 2022, 0, BigDecimal.valueOf(5000), BigDecimal.valueOf(300));
+                zoomCar.vehicleManager.addVehicle(car);
+                vehicleIds[i] = car.id;
+            }
+            pipeline = zoomCar.telemetry;
+        }
+    }
+
+    @Benchmark
+    public List<NearbyStore> findVehicles(FleetState state) {
+        return state.zoomCar.findVehicles(PUNE_LATITUDE, PUNE_LONGITUDE, 5, CarType.SUV, state.from, state.till);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TelemetryPipeline.BATCH)
+    public int ingestTelemetry(TelemetryState state) {
+        for (int i = 0; i < TelemetryPipeline.BATCH; i++) {
+            long timestamp = ++state.timestamp;
+            state.pipeline.publish(state.vehicleIds[(int) (timestamp % TelemetryState.VEHICLES)], timestamp, timestamp * 0.001, 50f,
+                    PUNE_LATITUDE, PUNE_LONGITUDE);
+        }
+        return state.pipeline.drainBatch();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ZoomCarBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-zoomcar.json")
+                .build();
+        new Runner(options).run();
+    }
+}